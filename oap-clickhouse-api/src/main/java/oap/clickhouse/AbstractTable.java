@@ -30,8 +30,6 @@ import com.google.common.cache.CacheBuilder;
 import lombok.AllArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
-import oap.tsv.Tsv;
-import oap.util.Lists;
 import oap.util.Strings;
 import org.apache.commons.lang3.StringUtils;
 
@@ -41,24 +39,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
-import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
 
 @Slf4j
 public class AbstractTable {
     public static final String OPTIMIZE_TABLE_SQL = "OPTIMIZE TABLE ${DATABASE}.${TABLE} ${FINAL}";
+    private static final QueryTemplate OPTIMIZE_TABLE = QueryTemplate.parse( OPTIMIZE_TABLE_SQL );
 
-    private static final String TABLE_EXISTS_SQL =
-        "SELECT name, engine, partition_key, primary_key, dependencies_table, create_table_query FROM system.tables "
-            + "WHERE database = '${DATABASE}' AND name = '${TABLE}' FORMAT TabSeparatedRaw";
+    private static final QueryTemplate DROP_TABLE_SQL = QueryTemplate.parse( "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}" );
 
-    private static final String DROP_TABLE_SQL = "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}";
-
-    private static final String FIELDS_QUERY =
-        "SELECT name, type, default_kind, default_expression, compression_codec, "
-            + "is_in_partition_key, is_in_sorting_key, is_in_primary_key, is_in_sampling_key "
-            + "FROM system.columns "
-            + "WHERE database = '${DATABASE}' AND table = '${TABLE}' FORMAT TabSeparatedRaw";
+    /**
+     * for subclasses, metadata of the table itself comes from the {@link DatabaseSchema} snapshot
+     */
     protected final Cache<String, Object> cache = CacheBuilder
         .newBuilder()
         .expireAfterWrite( Duration.ofMinutes( 1 ) )
@@ -72,13 +64,22 @@ public class AbstractTable {
     }
 
     protected String buildQuery( String query, Map<String, String> params ) {
-        return Strings.substitute( query, field ->
-            switch( field ) {
-                case "DATABASE" -> database.getName();
-                case "TABLE" -> name;
-                case "TABLE_SUFFIX" -> StringUtils.stripToEmpty( System.getProperty( "TABLE_SUFFIX" ) );
-                default -> params.get( field );
-            } );
+        if( !query.contains( "${" ) ) return query;
+
+        return Strings.substitute( query, field -> resolve( field, params ) );
+    }
+
+    protected String buildQuery( QueryTemplate query, Map<String, String> params ) {
+        return query.render( field -> resolve( field, params ) );
+    }
+
+    private String resolve( String field, Map<String, String> params ) {
+        return switch( field ) {
+            case "DATABASE" -> database.getName();
+            case "TABLE" -> name;
+            case "TABLE_SUFFIX" -> StringUtils.stripToEmpty( System.getProperty( "TABLE_SUFFIX" ) );
+            default -> params.get( field );
+        };
     }
 
     public void drop() throws ClickhouseException {
@@ -87,16 +88,14 @@ public class AbstractTable {
     }
 
     public boolean exists() throws ClickhouseException {
-        try {
-            return ( Boolean ) cache.get( "exists", () -> {
-                var sql = buildQuery( TABLE_EXISTS_SQL, emptyMap() );
-                log.trace( "sql = {}", sql );
-                var lines = database.client.getLines( sql, false );
-                return !lines.isEmpty();
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        return getSchema() != null;
+    }
+
+    /**
+     * @return this table in the database's {@link DatabaseSchema}, null if it does not exist
+     */
+    DatabaseSchema.TableSchema getSchema() {
+        return database.schema().get( name );
     }
 
     protected ClickhouseException getException( ExecutionException e ) {
@@ -107,46 +106,16 @@ public class AbstractTable {
     public void refresh() {
         cache.invalidateAll();
         cache.cleanUp();
+        database.schema().invalidate( name );
     }
 
-    @SuppressWarnings( { "unchecked", "checkstyle:LocalVariableName" } )
     public LinkedHashMap<String, FieldInfo> getFields() throws ClickhouseException {
-        try {
-            return ( LinkedHashMap<String, FieldInfo> ) cache.get( "getFields", () -> {
-                var fields = new LinkedHashMap<String, FieldInfo>();
-
-                var sql = buildQuery( FIELDS_QUERY, Map.of() );
-                log.trace( "sql = {}", sql );
-                var lines = database.client.getLines( sql, false );
-
-                log.trace( "lines = {}", lines );
-
-                for( String line : lines ) {
-                    var cols = StringUtils.splitPreserveAllTokens( line, '\t' );
-
-                    var name = cols[0];
-                    var type = cols[1];
-                    var default_type = cols[2];
-                    var default_expression = cols[3];
-                    var compression_codec = cols[4];
-                    var is_in_partition_key = "1".equals( cols[5] );
-                    var is_in_sorting_key = "1".equals( cols[6] );
-                    var is_in_primary_key = "1".equals( cols[7] );
-                    var is_in_sampling_key = "1".equals( cols[8] );
-
-                    fields.put( name, new FieldInfo( name, type, default_type, default_expression,
-                        compression_codec,
-                        is_in_partition_key, is_in_sorting_key,
-                        is_in_primary_key, is_in_sampling_key ) );
-                }
-
-                log.trace( "fields = {}", fields );
-
-                return fields;
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        var schema = getSchema();
+        var fields = schema != null ? new LinkedHashMap<>( schema.fields ) : new LinkedHashMap<String, FieldInfo>();
+
+        log.trace( "fields = {}", fields );
+
+        return fields;
     }
 
     public void optimize() {
@@ -154,34 +123,16 @@ public class AbstractTable {
     }
 
     public void optimize( boolean isFinal ) {
-        database.client.execute( buildQuery( OPTIMIZE_TABLE_SQL, Map.of( "FINAL", isFinal ? "FINAL" : "" ) ), false );
+        database.client.execute( buildQuery( OPTIMIZE_TABLE, Map.of( "FINAL", isFinal ? "FINAL" : "" ) ), false );
     }
 
     public Info getInfo() {
-        try {
-            return ( Info ) cache.get( "getInfo", () -> {
-                var sql = buildQuery( TABLE_EXISTS_SQL, emptyMap() );
-                log.trace( "sql = {}", sql );
-                var lines = database.client.getLines( sql, false );
-                Preconditions.checkNotNull( lines );
-                Preconditions.checkArgument( lines.size() == 1 );
-                var list = Tsv.tsv.parse( lines.get( 0 ) );
-                Preconditions.checkArgument( list.size() == 6 );
-
-                var engine = Engine.valueOf( list.get( 1 ) );
-                var primaryKeyTsv = list.get( 3 );
-                var dependenciesTable = list.get( 4 );
-                dependenciesTable = dependenciesTable.substring( 1, dependenciesTable.length() - 1 );
-
-                return new Info( list.get( 0 ), engine, list.get( 2 ),
-                    Lists.map( asList( StringUtils.split( primaryKeyTsv, ',' ) ), String::trim ),
-                    Lists.map( asList( StringUtils.split( dependenciesTable, ',' ) ), name ->
-                        name.substring( 1, name.length() - 1 ) ),
-                    list.get( 5 ) );
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        var schema = getSchema();
+        Preconditions.checkArgument( schema != null, "table %s.%s not found", database.getName(), name );
+        log.trace( "schema {}", schema );
+
+        return new Info( schema.name, Engine.valueOf( schema.engine ), schema.partitionKey,
+            schema.primaryKey, schema.dependenciesTable, schema.createTableQuery );
     }
 
     @ToString
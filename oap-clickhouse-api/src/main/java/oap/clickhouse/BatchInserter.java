@@ -0,0 +1,336 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static oap.util.Dates.s;
+
+/**
+ * Collects encoded rows for many tables and sends each table's rows as one insert once it reaches {@code maxRows}
+ * rows, {@code maxBytes} bytes or {@code maxLatency} ms of age, on up to {@code concurrency} parallel put streams.
+ * <p>
+ * Rows waiting or being sent take at most {@code maxBufferedBytes}; beyond that {@link #insert(String, byte[])}
+ * blocks for up to {@code blockTimeout} ms ({@link Backpressure#BLOCK}) or fails at once ({@link Backpressure#FAIL})
+ * with {@link ClickhouseException}. A failed insert is logged and its rows are counted in {@link #getFailedRows()}.
+ */
+@Slf4j
+public class BatchInserter {
+    public final ClickhouseClient client;
+    public DataFormat format = DataFormat.TabSeparated;
+    public int maxRows = 100_000;
+    public long maxBytes = 16 * 1024 * 1024;
+    public long maxLatency = s( 1 );
+    public int concurrency = 4;
+    public long maxBufferedBytes = 256 * 1024 * 1024;
+    public Backpressure backpressure = Backpressure.BLOCK;
+    public long blockTimeout = s( 30 );
+    /**
+     * failed batches go here instead of being dropped, its format must match {@code format}
+     */
+    public InsertSpool spool;
+
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ReentrantLock memoryLock = new ReentrantLock();
+    private final Condition memoryReleased = memoryLock.newCondition();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong insertedRows = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+    /**
+     * inserts append under the read lock, stop() turns {@code running} off under the write lock before its final flush
+     */
+    private final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean running = false;
+    private long bufferedBytes = 0;
+    private volatile ExecutorService flushers;
+    private ScheduledExecutorService timer;
+
+    public BatchInserter( ClickhouseClient client ) {
+        this.client = client;
+    }
+
+    public void start() {
+        log.info( "format: {}, maxRows: {}, maxBytes: {}, maxLatency: {}ms, concurrency: {}, maxBufferedBytes: {}, backpressure: {}",
+            format, maxRows, FileUtils.byteCountToDisplaySize( maxBytes ), maxLatency, concurrency,
+            FileUtils.byteCountToDisplaySize( maxBufferedBytes ), backpressure );
+
+        var threads = new AtomicInteger();
+        flushers = Executors.newFixedThreadPool( concurrency, r -> {
+            var thread = new Thread( r, "clickhouse-batch-" + threads.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        timer = Executors.newSingleThreadScheduledExecutor( r -> {
+            var thread = new Thread( r, "clickhouse-batch-timer" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        var period = Math.max( maxLatency / 4, 10 );
+        timer.scheduleWithFixedDelay( this::flushExpired, period, period, MILLISECONDS );
+
+        lifecycle.writeLock().lock();
+        try {
+            running = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sends everything collected so far and waits for the pending inserts.
+     */
+    public void stop() {
+        if( timer == null ) return;
+
+        lifecycle.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        timer.shutdownNow();
+        flush();
+        flushers.shutdown();
+        try {
+            if( !flushers.awaitTermination( client.getTimeout() > 0 ? client.getTimeout() : Long.MAX_VALUE, MILLISECONDS ) )
+                log.warn( "{} inserts are still running", inFlight.get() );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param line a row without the trailing line feed, in {@code format}
+     */
+    public void insert( String table, String line ) {
+        var bytes = line.getBytes( UTF_8 );
+        var row = Arrays.copyOf( bytes, bytes.length + 1 );
+        row[bytes.length] = '\n';
+        insert( table, row );
+    }
+
+    /**
+     * @param row exactly one complete row in {@code format}, several rows go through {@link #insert(String, byte[], int, int, int)}
+     */
+    public void insert( String table, byte[] row ) {
+        insert( table, row, 0, row.length, 1 );
+    }
+
+    /**
+     * @param rows number of complete rows in {@code data}, counted against {@code maxRows} and in the statistics
+     * @throws ClickhouseException when the inserter is not started or already stopped
+     */
+    public void insert( String table, byte[] data, int offset, int length, int rows ) {
+        var flushers = this.flushers;
+        if( flushers == null || flushers.isShutdown() ) throw new ClickhouseException( "batch inserter is not running", 0, null );
+
+        reserve( length );
+
+        Batch batch;
+        boolean full;
+        lifecycle.readLock().lock();
+        try {
+            if( !running ) {
+                release( length );
+                throw new ClickhouseException( "batch inserter is not running", 0, null );
+            }
+
+            while( true ) {
+                batch = batches.computeIfAbsent( table, Batch::new );
+                synchronized( batch ) {
+                    if( batch.sealed ) continue;
+
+                    batch.append( data, offset, length, rows );
+                    full = batch.rows >= maxRows || batch.size >= maxBytes;
+                    break;
+                }
+            }
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        if( full ) seal( batch );
+    }
+
+    /**
+     * Sends all collected rows without waiting for the inserts.
+     */
+    public void flush() {
+        for( var batch : batches.values() ) seal( batch );
+    }
+
+    public long getBufferedBytes() {
+        memoryLock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            memoryLock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getInsertedRows() {
+        return insertedRows.get();
+    }
+
+    public long getFailedRows() {
+        return failedRows.get();
+    }
+
+    private void flushExpired() {
+        var now = System.currentTimeMillis();
+        for( var batch : batches.values() )
+            if( now - batch.created >= maxLatency ) seal( batch );
+    }
+
+    /**
+     * Takes the batch out of collection and queues it, unless someone else already did.
+     */
+    private void seal( Batch batch ) {
+        synchronized( batch ) {
+            if( batch.sealed ) return;
+            batch.sealed = true;
+            batches.remove( batch.table, batch );
+        }
+
+        inFlight.incrementAndGet();
+        try {
+            if( flushers == null ) throw new RejectedExecutionException( "not started" );
+            flushers.execute( () -> send( batch ) );
+        } catch( RejectedExecutionException e ) {
+            inFlight.decrementAndGet();
+            release( batch.size );
+            if( spool( batch, e ) ) return;
+            failedRows.addAndGet( batch.rows );
+            throw new ClickhouseException( "batch inserter is not running, " + batch.rows + " rows into " + batch.table + " dropped", 0, null );
+        }
+    }
+
+    private void send( Batch batch ) {
+        try {
+            client.insert( batch.table, format, batch.data, 0, batch.size, batch.token );
+        } catch( RuntimeException e ) {
+            if( spool( batch, e ) ) return;
+            failedRows.addAndGet( batch.rows );
+            log.error( "insert of {} rows ({}) into {} failed", batch.rows,
+                FileUtils.byteCountToDisplaySize( batch.size ), batch.table, e );
+            return;
+        } finally {
+            inFlight.decrementAndGet();
+            release( batch.size );
+        }
+        insertedRows.addAndGet( batch.rows );
+        log.trace( "inserted {} rows into {}", batch.rows, batch.table );
+    }
+
+    private boolean spool( Batch batch, Exception cause ) {
+        if( spool == null ) return false;
+
+        try {
+            spool.append( batch.table, batch.data, 0, batch.size, batch.rows, batch.token );
+        } catch( RuntimeException e ) {
+            log.error( "spooling of {} rows into {} failed: {}", batch.rows, batch.table, e.getMessage() );
+            return false;
+        }
+        log.warn( "insert of {} rows into {} failed, spooled: {}", batch.rows, batch.table, cause.getMessage() );
+        return true;
+    }
+
+    private void reserve( long size ) {
+        memoryLock.lock();
+        try {
+            if( bufferedBytes + size > maxBufferedBytes && bufferedBytes > 0 ) {
+                if( backpressure == Backpressure.FAIL )
+                    throw new ClickhouseException( "batch buffer is full: " + bufferedBytes + " bytes", 0, null );
+
+                var nanos = TimeUnit.MILLISECONDS.toNanos( blockTimeout );
+                while( bufferedBytes + size > maxBufferedBytes && bufferedBytes > 0 ) {
+                    if( nanos <= 0 )
+                        throw new ClickhouseException( "batch buffer is full for " + blockTimeout + "ms", 0, null );
+                    nanos = memoryReleased.awaitNanos( nanos );
+                }
+            }
+            bufferedBytes += size;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new ClickhouseException( e );
+        } finally {
+            memoryLock.unlock();
+        }
+    }
+
+    private void release( long size ) {
+        memoryLock.lock();
+        try {
+            bufferedBytes -= size;
+            memoryReleased.signalAll();
+        } finally {
+            memoryLock.unlock();
+        }
+    }
+
+    public enum Backpressure {
+        BLOCK, FAIL
+    }
+
+    private static final class Batch {
+        final String table;
+        final long created = System.currentTimeMillis();
+        final String token = UUID.randomUUID().toString();
+        byte[] data = new byte[4096];
+        int size = 0;
+        int rows = 0;
+        boolean sealed = false;
+
+        Batch( String table ) {
+            this.table = table;
+        }
+
+        void append( byte[] row, int offset, int length, int rows ) {
+            if( size + length > data.length ) data = Arrays.copyOf( data, Math.max( data.length * 2, size + length ) );
+            System.arraycopy( row, offset, data, size, length );
+            size += length;
+            this.rows += rows;
+        }
+    }
+}
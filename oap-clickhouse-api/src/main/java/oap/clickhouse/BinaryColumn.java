@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import oap.clickhouse.FieldType.LowCardinality;
+
+import java.io.IOException;
+
+/**
+ * How a {@link ConfigField} is laid out in the binary formats: the value encoding and whether it is an array of it.
+ */
+final class BinaryColumn {
+    final String name;
+    final String type;
+    final Encoder encoder;
+    final boolean array;
+    final int length;
+
+    BinaryColumn( ConfigField field ) {
+        this.name = field.name;
+        this.type = field.type.toClickhouseType( field.length, field.enumName, LowCardinality.OFF );
+        this.array = switch( field.type ) {
+            case DATETIME_ARRAY, STRING_ARRAY, LONG_ARRAY, ENUM_ARRAY -> true;
+            default -> false;
+        };
+        this.length = field.length.orElse( 0 );
+        this.encoder = switch( field.type ) {
+            case STRING, STRING_ARRAY -> field.length.isPresent() ? Encoder.FIXED_STRING : Encoder.STRING;
+            case DATETIME, DATETIME_ARRAY -> Encoder.DATETIME;
+            case DATETIME64 -> Encoder.DATETIME64;
+            case DATE -> Encoder.DATE;
+            case BOOLEAN, BYTE -> Encoder.UINT8;
+            case INTEGER, UNSIGNED_INTEGER -> Encoder.INT32;
+            case LONG, UNSIGNED_LONG, LONG_ARRAY -> Encoder.INT64;
+            case DOUBLE -> Encoder.FLOAT64;
+            case ENUM, ENUM_ARRAY -> type.contains( "Enum16(" ) ? Encoder.INT16 : Encoder.UINT8;
+        };
+    }
+
+    boolean isString() {
+        return encoder == Encoder.STRING || encoder == Encoder.FIXED_STRING;
+    }
+
+    void checkFixedLength( int length ) {
+        if( encoder == Encoder.FIXED_STRING && length > this.length )
+            throw new IllegalArgumentException( name + " is " + type + ", got " + length + " bytes" );
+    }
+
+    /**
+     * Epoch milliseconds in the column's own unit.
+     */
+    long fromMillis( long millis ) {
+        return switch( encoder ) {
+            case DATE -> Math.floorDiv( millis, 86400000L );
+            case DATETIME -> Math.floorDiv( millis, 1000L );
+            case DATETIME64 -> millis;
+            default -> throw new IllegalStateException( "cannot write datetime into " + name + " " + type );
+        };
+    }
+
+    /**
+     * Writes one value held as a long (anything but strings and Float64).
+     */
+    void write( BinaryOutput out, long value ) throws IOException {
+        switch( encoder ) {
+            case UINT8 -> out.putByte( value );
+            case INT16, DATE -> out.putShort( value );
+            case INT32, DATETIME -> out.putInt( value );
+            case INT64, DATETIME64 -> out.putLong( value );
+            case FLOAT64 -> out.putLong( Double.doubleToRawLongBits( value ) );
+            default -> throw new IllegalStateException( "cannot write long into " + name + " " + type );
+        }
+    }
+
+    enum Encoder {
+        UINT8, INT16, INT32, INT64, FLOAT64, STRING, FIXED_STRING, DATE, DATETIME, DATETIME64
+    }
+}
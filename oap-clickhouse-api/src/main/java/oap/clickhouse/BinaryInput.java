@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Buffered reads of the binary formats, the counterpart of {@link BinaryOutput}.
+ */
+final class BinaryInput {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    BinaryInput( InputStream in, int bufferSize ) {
+        this.in = in;
+        this.buffer = new byte[Math.max( bufferSize, 16 )];
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    boolean hasMore() throws IOException {
+        return position < limit || fill();
+    }
+
+    int readByte() throws IOException {
+        if( position == limit && !fill() ) throw new EOFException();
+        return buffer[position++] & 0xFF;
+    }
+
+    void readFully( byte[] dest, int offset, int length ) throws IOException {
+        while( length > 0 ) {
+            if( position == limit && !fill() ) throw new EOFException();
+            int n = Math.min( length, limit - position );
+            System.arraycopy( buffer, position, dest, offset, n );
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    long readVarInt() throws IOException {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            int b = readByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    String readString() throws IOException {
+        var bytes = new byte[( int ) readVarInt()];
+        readFully( bytes, 0, bytes.length );
+        return new String( bytes, UTF_8 );
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read( buffer, 0, buffer.length );
+        if( n <= 0 ) return false;
+        position = 0;
+        limit = n;
+        return true;
+    }
+}
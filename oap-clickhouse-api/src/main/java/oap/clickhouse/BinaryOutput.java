@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Little-endian writes into a reusable buffer in front of an {@link OutputStream}.
+ */
+final class BinaryOutput {
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position = 0;
+
+    BinaryOutput( OutputStream out, int bufferSize ) {
+        this.out = out;
+        this.buffer = new byte[Math.max( bufferSize, 16 )];
+    }
+
+    void putByte( long value ) throws IOException {
+        ensure( 1 );
+        buffer[position++] = ( byte ) value;
+    }
+
+    void putShort( long value ) throws IOException {
+        ensure( 2 );
+        buffer[position++] = ( byte ) value;
+        buffer[position++] = ( byte ) ( value >>> 8 );
+    }
+
+    void putInt( long value ) throws IOException {
+        ensure( 4 );
+        buffer[position++] = ( byte ) value;
+        buffer[position++] = ( byte ) ( value >>> 8 );
+        buffer[position++] = ( byte ) ( value >>> 16 );
+        buffer[position++] = ( byte ) ( value >>> 24 );
+    }
+
+    void putLong( long value ) throws IOException {
+        putInt( value );
+        putInt( value >>> 32 );
+    }
+
+    void putVarInt( long value ) throws IOException {
+        ensure( 10 );
+        while( ( value & ~0x7FL ) != 0 ) {
+            buffer[position++] = ( byte ) ( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        buffer[position++] = ( byte ) value;
+    }
+
+    void putBytes( byte[] value, int offset, int length ) throws IOException {
+        if( length > buffer.length - position ) {
+            flushBuffer();
+            if( length > buffer.length ) {
+                out.write( value, offset, length );
+                return;
+            }
+        }
+        System.arraycopy( value, offset, buffer, position, length );
+        position += length;
+    }
+
+    void putZeros( int count ) throws IOException {
+        for( int i = 0; i < count; i++ ) putByte( 0 );
+    }
+
+    /**
+     * A String: varint length, then the UTF-8 bytes.
+     */
+    void putString( CharSequence value ) throws IOException {
+        var length = utf8Length( value );
+        putVarInt( length );
+        putUtf8( value, length );
+    }
+
+    /**
+     * @param length {@link #utf8Length(CharSequence)} of {@code value}
+     */
+    void putUtf8( CharSequence value, int length ) throws IOException {
+        if( length > buffer.length ) {
+            var bytes = new byte[length];
+            encodeUtf8( value, bytes, 0 );
+            putBytes( bytes, 0, length );
+            return;
+        }
+        ensure( length );
+        position = encodeUtf8( value, buffer, position );
+    }
+
+    void flushBuffer() throws IOException {
+        if( position > 0 ) {
+            out.write( buffer, 0, position );
+            position = 0;
+        }
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void ensure( int size ) throws IOException {
+        if( position + size > buffer.length ) flushBuffer();
+    }
+
+    static int utf8Length( CharSequence value ) {
+        int bytes = 0;
+        for( int i = 0, length = value.length(); i < length; i++ ) {
+            char ch = value.charAt( i );
+            if( ch < 0x80 ) bytes += 1;
+            else if( ch < 0x800 ) bytes += 2;
+            else if( isSurrogatePair( value, i ) ) {
+                bytes += 4;
+                i++;
+            } else if( Character.isSurrogate( ch ) ) bytes += 1;
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes all of {@code value} into {@code dest}, which must have room for {@link #utf8Length(CharSequence)} bytes.
+     *
+     * @return the position after the last byte
+     */
+    static int encodeUtf8( CharSequence value, byte[] dest, int position ) {
+        for( int i = 0, length = value.length(); i < length; i++ ) {
+            char ch = value.charAt( i );
+            if( ch < 0x80 ) dest[position++] = ( byte ) ch;
+            else if( ch < 0x800 ) {
+                dest[position++] = ( byte ) ( 0xC0 | ch >> 6 );
+                dest[position++] = ( byte ) ( 0x80 | ch & 0x3F );
+            } else if( isSurrogatePair( value, i ) ) {
+                int cp = Character.toCodePoint( ch, value.charAt( ++i ) );
+                dest[position++] = ( byte ) ( 0xF0 | cp >> 18 );
+                dest[position++] = ( byte ) ( 0x80 | cp >> 12 & 0x3F );
+                dest[position++] = ( byte ) ( 0x80 | cp >> 6 & 0x3F );
+                dest[position++] = ( byte ) ( 0x80 | cp & 0x3F );
+            } else if( Character.isSurrogate( ch ) ) dest[position++] = '?';
+            else {
+                dest[position++] = ( byte ) ( 0xE0 | ch >> 12 );
+                dest[position++] = ( byte ) ( 0x80 | ch >> 6 & 0x3F );
+                dest[position++] = ( byte ) ( 0x80 | ch & 0x3F );
+            }
+        }
+        return position;
+    }
+
+    private static boolean isSurrogatePair( CharSequence value, int i ) {
+        return Character.isHighSurrogate( value.charAt( i ) ) && i + 1 < value.length()
+            && Character.isLowSurrogate( value.charAt( i + 1 ) );
+    }
+}
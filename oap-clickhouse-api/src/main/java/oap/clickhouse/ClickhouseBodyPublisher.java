@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streaming request body for {@link java.net.http.HttpClient}: writes are handed over in {@code chunkSize} buffers
+ * and block only while the client has no demand.
+ */
+public class ClickhouseBodyPublisher extends OutputStream implements HttpRequest.BodyPublisher {
+    private final int chunkSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private byte[] buffer;
+    private int count = 0;
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean completed = false;
+    private Throwable failure;
+
+    public ClickhouseBodyPublisher( int chunkSize ) {
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void subscribe( Flow.Subscriber<? super ByteBuffer> subscriber ) {
+        lock.lock();
+        try {
+            if( this.subscriber != null ) {
+                subscriber.onSubscribe( new Flow.Subscription() {
+                    @Override
+                    public void request( long n ) {}
+
+                    @Override
+                    public void cancel() {}
+                } );
+                subscriber.onError( new IllegalStateException( "request body cannot be replayed" ) );
+                return;
+            }
+            this.subscriber = subscriber;
+        } finally {
+            lock.unlock();
+        }
+
+        subscriber.onSubscribe( new Subscription() );
+    }
+
+    public void fail( Throwable e ) {
+        lock.lock();
+        try {
+            if( failure == null ) failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        if( count == buffer.length ) emit();
+        buffer[count++] = ( byte ) b;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        while( len > 0 ) {
+            if( count == buffer.length ) emit();
+
+            var size = Math.min( len, buffer.length - count );
+            System.arraycopy( b, off, buffer, count, size );
+            count += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if( count > 0 ) emit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( completed ) return;
+
+        flush();
+
+        Flow.Subscriber<? super ByteBuffer> s;
+        lock.lock();
+        try {
+            awaitSubscriber();
+            completed = true;
+            s = subscriber;
+        } finally {
+            lock.unlock();
+        }
+        if( !cancelled ) s.onComplete();
+    }
+
+    private void emit() throws IOException {
+        Flow.Subscriber<? super ByteBuffer> s;
+        lock.lock();
+        try {
+            awaitSubscriber();
+            while( demand == 0 && !cancelled && failure == null ) changed.await();
+            checkState();
+            demand--;
+            s = subscriber;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        } finally {
+            lock.unlock();
+        }
+
+        var chunk = ByteBuffer.wrap( buffer, 0, count );
+        buffer = new byte[chunkSize];
+        count = 0;
+        s.onNext( chunk );
+    }
+
+    private void awaitSubscriber() throws IOException {
+        try {
+            while( subscriber == null && failure == null ) changed.await();
+            checkState();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+    }
+
+    private void checkState() throws IOException {
+        if( failure != null ) throw new IOException( failure );
+        if( cancelled ) throw new IOException( "request body cancelled" );
+        if( completed ) throw new IOException( "request body closed" );
+    }
+
+    private class Subscription implements Flow.Subscription {
+        /**
+         * A non-positive {@code n} cancels the subscription and is signalled to the subscriber (Reactive Streams 3.9)
+         * as well as to the writer.
+         */
+        @Override
+        public void request( long n ) {
+            IllegalArgumentException error = null;
+            Flow.Subscriber<? super ByteBuffer> s;
+            lock.lock();
+            try {
+                if( cancelled || completed ) return;
+                if( n <= 0 ) {
+                    error = new IllegalArgumentException( "non-positive request " + n );
+                    if( failure == null ) failure = error;
+                    cancelled = true;
+                } else demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                s = subscriber;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if( error != null ) s.onError( error );
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -24,10 +24,15 @@
 
 package oap.clickhouse;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public interface ClickhouseClient {
     default List<String> getLines( String query ) throws ClickhouseException {
@@ -75,6 +80,52 @@ public interface ClickhouseClient {
 
     ClickhouseProcess putAsync( String table, DataFormat format, Collection<String> fields, long timeout );
 
+    default void insert( String table, DataFormat format, byte[] data, String token ) {
+        insert( table, format, data, 0, data.length, token );
+    }
+
+    default void insert( String table, DataFormat format, byte[] data, int offset, int length, String token ) {
+        insert( table, format, List.of(), token, out -> out.write( data, offset, length ), getTimeout() );
+    }
+
+    /**
+     * Sends a complete batch, retrying transient failures where the client supports it. The batch goes out with
+     * {@code token} as insert_deduplication_token and query_id, so a resend of an insert that did reach the server
+     * is dropped as a duplicate (replicated tables, or non_replicated_deduplication_window for MergeTree).
+     *
+     * @param token stable for the batch across retries and restarts
+     * @param body  called once per attempt, must write the same bytes every time
+     */
+    default void insert( String table, DataFormat format, Collection<String> fields, String token, InsertBody body, long timeout ) {
+        try( var out = put( table, format, fields, timeout ) ) {
+            body.writeTo( out );
+        } catch( IOException e ) {
+            throw new ClickhouseException( e );
+        }
+    }
+
+    default RowBinaryWriter putRowBinary( String table, List<ConfigField> fields ) {
+        return putRowBinary( table, fields, getTimeout() );
+    }
+
+    default RowBinaryWriter putRowBinary( String table, List<ConfigField> fields, long timeout ) {
+        var columns = fields.stream().filter( f -> f.materialized.isEmpty() ).collect( Collectors.toList() );
+        var names = columns.stream().map( f -> f.name ).collect( Collectors.toList() );
+
+        return new RowBinaryWriter( columns, put( table, DataFormat.RowBinary, names, timeout ) );
+    }
+
+    default NativeBatchWriter putNative( TableInfo table ) {
+        return putNative( table, getTimeout() );
+    }
+
+    default NativeBatchWriter putNative( TableInfo table, long timeout ) {
+        var columns = table.fields.stream().filter( f -> f.materialized.isEmpty() ).collect( Collectors.toList() );
+        var names = columns.stream().map( f -> f.name ).collect( Collectors.toList() );
+
+        return new NativeBatchWriter( columns, put( table.name, DataFormat.Native, names, timeout ) );
+    }
+
 
     default ClickhouseProcess executeAsync( String query, boolean useDatabase ) {
         return executeAsync( query, useDatabase, getTimeout() );
@@ -120,6 +171,51 @@ public interface ClickhouseClient {
 
     int get( String query, Consumer<String> line, boolean useDatabase, long timeout ) throws ClickhouseException;
 
+    default int getTsv( String query, Consumer<TsvCursor> row ) throws ClickhouseException {
+        return getTsv( query, row, true, getTimeout() );
+    }
+
+    default int getTsv( String query, Consumer<TsvCursor> row, boolean useDatabase ) throws ClickhouseException {
+        return getTsv( query, row, useDatabase, getTimeout() );
+    }
+
+    /**
+     * Like {@link #get(String, Consumer, boolean, long)}, but hands out the reusable {@link TsvCursor} instead of
+     * a String per line.
+     *
+     * @return the number of lines
+     */
+    int getTsv( String query, Consumer<TsvCursor> row, boolean useDatabase, long timeout ) throws ClickhouseException;
+
+    default Stream<String> stream( String query ) throws ClickhouseException {
+        return stream( query, TsvCursor::line );
+    }
+
+    default <T> Stream<T> stream( String query, Function<TsvCursor, T> mapper ) throws ClickhouseException {
+        return stream( query, mapper, true, getTimeout() );
+    }
+
+    /**
+     * A lazy view of the response: lines are read as the stream advances. The stream must be closed; closing it
+     * before the end drops the connection and cancels the query.
+     */
+    <T> Stream<T> stream( String query, Function<TsvCursor, T> mapper, boolean useDatabase, long timeout ) throws ClickhouseException;
+
+    default int getRowBinary( String query, RowConsumer row ) throws ClickhouseException {
+        return getRowBinary( query, row, true, getTimeout() );
+    }
+
+    default int getRowBinary( String query, RowConsumer row, long timeout ) throws ClickhouseException {
+        return getRowBinary( query, row, true, timeout );
+    }
+
+    /**
+     * Runs {@code query} as RowBinaryWithNamesAndTypes, replacing its own FORMAT clause, passing every row to {@code row}.
+     *
+     * @return the number of rows
+     */
+    int getRowBinary( String query, RowConsumer row, boolean useDatabase, long timeout ) throws ClickhouseException;
+
     Database getDatabase();
 
     ClickhouseClient useDatabase( String database );
@@ -130,7 +226,50 @@ public interface ClickhouseClient {
         return withUser( null );
     }
 
+    /**
+     * A view that sends {@code settings} (max_threads, max_execution_time, insert_quorum, ...) with every request,
+     * on top of the client's own.
+     */
+    ClickhouseClient withSettings( Map<String, ?> settings );
+
+    /**
+     * A view that binds the {@code {name:Type}} placeholders of its queries and inserts on the server, sending every
+     * entry as a param_name parameter: {@code withParams( Map.of( "id", id ) ).getLines( "SELECT * FROM T WHERE ID = {id:String}" )}.
+     * Collections become arrays, booleans 1/0, anything else its string value, no quoting needed.
+     */
+    ClickhouseClient withParams( Map<String, ?> params );
+
+    /**
+     * {@link #withSettings(Map)} with a named profile of the client configuration.
+     */
+    ClickhouseClient withProfile( String profile );
+
+    /**
+     * A view that answers SELECT reads of {@link #get}, {@link #getLines} and {@link #getTsv} from a result cache shared
+     * by the client and its views, keyed by the query text, database, user and settings. Writes through the client
+     * (put, insert, TRUNCATE, DROP, ALTER) drop the cached results of the tables they touch; changes made by anyone
+     * else show up after the cache's ttl.
+     */
+    ClickhouseClient withResultCache();
+
+    /**
+     * A view that passes the X-ClickHouse-Summary of every completed request to {@code stats}. For a SELECT the
+     * summary covers the work done before the first block only, unless wait_end_of_query is set.
+     */
+    ClickhouseClient withStats( Consumer<QueryStats> stats );
+
+    /**
+     * A view that asks for X-ClickHouse-Progress headers and passes them to {@code progress} while the query runs,
+     * until the first block of the result. Only the POOLED transport sees them as they arrive, the others get the
+     * last one with the response head.
+     */
+    ClickhouseClient withProgress( Consumer<QueryStats> progress );
+
     interface ClickhouseProcess {
         ClickhouseStream toStream() throws ClickhouseException;
     }
+
+    interface InsertBody {
+        void writeTo( OutputStream out ) throws IOException;
+    }
 }
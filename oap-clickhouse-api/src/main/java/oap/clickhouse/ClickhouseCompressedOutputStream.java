@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frames the request body into ClickHouse compressed blocks:
+ * {@code checksum(16) | method(1) | compressed size(4) | decompressed size(4) | data}, where the checksum is
+ * CityHash128 of everything after it and both sizes are little-endian, the compressed one including the 9-byte header.
+ */
+public class ClickhouseCompressedOutputStream extends OutputStream {
+    static final int CHECKSUM_SIZE = 16;
+    static final int HEADER_SIZE = 9;
+
+    private final OutputStream out;
+    private final NativeCompression compression;
+    private final byte[] buffer;
+    private final byte[] block;
+    private int count = 0;
+    private boolean closed = false;
+
+    public ClickhouseCompressedOutputStream( OutputStream out, NativeCompression compression, int blockSize ) {
+        this.out = out;
+        this.compression = compression;
+        this.buffer = new byte[blockSize];
+        this.block = new byte[CHECKSUM_SIZE + HEADER_SIZE + compression.maxCompressedLength( blockSize )];
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        if( count == buffer.length ) writeBlock();
+        buffer[count++] = ( byte ) b;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        while( len > 0 ) {
+            if( count == buffer.length ) writeBlock();
+
+            int n = Math.min( len, buffer.length - count );
+            System.arraycopy( b, off, buffer, count, n );
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( closed ) return;
+        closed = true;
+
+        try {
+            writeBlock();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if( count == 0 ) return;
+
+        int size = HEADER_SIZE + compression.compress( buffer, count, block, CHECKSUM_SIZE + HEADER_SIZE );
+
+        block[CHECKSUM_SIZE] = compression.method;
+        writeInt( block, CHECKSUM_SIZE + 1, size );
+        writeInt( block, CHECKSUM_SIZE + 5, count );
+
+        var checksum = CityHash.cityHash128( block, CHECKSUM_SIZE, size );
+        writeLong( block, 0, checksum[0] );
+        writeLong( block, 8, checksum[1] );
+
+        out.write( block, 0, CHECKSUM_SIZE + size );
+        count = 0;
+    }
+
+    private static void writeInt( byte[] b, int pos, int value ) {
+        b[pos] = ( byte ) value;
+        b[pos + 1] = ( byte ) ( value >>> 8 );
+        b[pos + 2] = ( byte ) ( value >>> 16 );
+        b[pos + 3] = ( byte ) ( value >>> 24 );
+    }
+
+    private static void writeLong( byte[] b, int pos, long value ) {
+        writeInt( b, pos, ( int ) value );
+        writeInt( b, pos + 4, ( int ) ( value >>> 32 ) );
+    }
+}
@@ -24,7 +24,18 @@
 
 package oap.clickhouse;
 
+import java.io.IOException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 public class ClickhouseException extends RuntimeException {
+    /**
+     * Server error codes that may succeed on a retry: timeouts, network errors, too many queries/parts,
+     * a read-only replica, keeper errors and an insert still running under the same query_id.
+     */
+    static final Set<Integer> RETRYABLE_CODES = Set.of( 159, 164, 202, 209, 210, 216, 242, 252, 319, 425, 999 );
+    private static final Pattern ERROR_CODE = Pattern.compile( "Code: (\\d+)" );
+
     public final int code;
     public final String body;
 
@@ -39,4 +50,37 @@ public class ClickhouseException extends RuntimeException {
         this.code = 0;
         this.body = cause.getMessage();
     }
+
+    /**
+     * @return the ClickHouse error code from the response body, or 0
+     */
+    public int getErrorCode() {
+        if( body == null ) return 0;
+
+        var matcher = ERROR_CODE.matcher( body );
+        return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : 0;
+    }
+
+    /**
+     * Connection failures, 502-504 responses and {@link #RETRYABLE_CODES} are transient, anything else the server
+     * answered is not.
+     */
+    public static boolean isRetryable( Throwable e ) {
+        for( var t = e; t != null; t = t.getCause() ) {
+            if( t instanceof ClickhouseException && ( ( ClickhouseException ) t ).code > 0 ) {
+                var ce = ( ClickhouseException ) t;
+                return ce.code >= 502 && ce.code <= 504 || RETRYABLE_CODES.contains( ce.getErrorCode() );
+            }
+            if( t instanceof IOException ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code e} or one of its causes is a {@code type}
+     */
+    static boolean causedBy( Throwable e, Class<? extends Throwable> type ) {
+        for( var t = e; t != null; t = t.getCause() ) if( type.isInstance( t ) ) return true;
+        return false;
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Meters of all clients in {@link Metrics#globalRegistry}:
+ * <ul>
+ * <li>clickhouse.requests - timer, type = query | insert, outcome = success | error | cancelled (closed early by the caller)</li>
+ * <li>clickhouse.requests.in_flight - gauge</li>
+ * <li>clickhouse.insert.rows, clickhouse.insert.bytes - counters, table, as written by the server</li>
+ * <li>clickhouse.retries - counter, table</li>
+ * <li>clickhouse.errors - counter, code = the ClickHouse error code, the http status, io or timeout; not for cancelled requests</li>
+ * <li>clickhouse.pool.connections - gauge, state = open | idle | active</li>
+ * <li>clickhouse.coalesced - counter, reads that waited for an identical one instead of sending their own</li>
+ * <li>clickhouse.cache - counter, result = hit | stale | miss, reads of {@link ClickhouseClient#withResultCache()} views</li>
+ * </ul>
+ */
+final class ClickhouseMetrics {
+    private static final Timer QUERY = timer( "query", "success" );
+    private static final Timer INSERT = timer( "insert", "success" );
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final Set<ConnectionPool> POOLS = Collections.synchronizedSet( Collections.newSetFromMap( new WeakHashMap<>() ) );
+
+    static {
+        Gauge.builder( "clickhouse.requests.in_flight", IN_FLIGHT, AtomicInteger::get ).register( Metrics.globalRegistry );
+        poolGauge( "open", ConnectionPool::getOpenConnections );
+        poolGauge( "idle", ConnectionPool::getIdleConnections );
+        poolGauge( "active", ConnectionPool::getActiveConnections );
+    }
+
+    private ClickhouseMetrics() {
+    }
+
+    private static Timer timer( String type, String outcome ) {
+        return Timer.builder( "clickhouse.requests" )
+            .tag( "type", type )
+            .tag( "outcome", outcome )
+            .publishPercentileHistogram()
+            .register( Metrics.globalRegistry );
+    }
+
+    private static void poolGauge( String state, ToIntFunction<ConnectionPool> value ) {
+        Gauge.builder( "clickhouse.pool.connections", POOLS, pools -> {
+            synchronized( pools ) {
+                return pools.stream().mapToInt( value ).sum();
+            }
+        } ).tag( "state", state ).register( Metrics.globalRegistry );
+    }
+
+    static void register( ConnectionPool pool ) {
+        POOLS.add( pool );
+    }
+
+    /**
+     * @return the start time for {@link #completed(long, boolean, String, QueryStats, Throwable)}
+     */
+    static long started() {
+        IN_FLIGHT.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    static void completed( long start, boolean insert, String table, QueryStats stats, Throwable e ) {
+        IN_FLIGHT.decrementAndGet();
+        var time = System.nanoTime() - start;
+
+        if( e != null ) {
+            var cancelled = e instanceof ClickhouseException && e.getCause() instanceof CancellationException;
+            timer( insert ? "insert" : "query", cancelled ? "cancelled" : "error" ).record( time, NANOSECONDS );
+            if( !cancelled ) error( e );
+            return;
+        }
+        ( insert ? INSERT : QUERY ).record( time, NANOSECONDS );
+        if( insert && table != null && stats != null ) {
+            Metrics.counter( "clickhouse.insert.rows", "table", table ).increment( stats.writtenRows );
+            Metrics.counter( "clickhouse.insert.bytes", "table", table ).increment( stats.writtenBytes );
+        }
+    }
+
+    static void error( Throwable e ) {
+        Metrics.counter( "clickhouse.errors", "code", code( e ) ).increment();
+    }
+
+    static void retry( String table ) {
+        Metrics.counter( "clickhouse.retries", "table", table ).increment();
+    }
+
+    static void coalesced() {
+        Metrics.counter( "clickhouse.coalesced" ).increment();
+    }
+
+    static void cache( String result ) {
+        Metrics.counter( "clickhouse.cache", "result", result ).increment();
+    }
+
+    private static String code( Throwable e ) {
+        if( e instanceof ClickhouseException && e.getCause() instanceof TimeoutException ) return "timeout";
+        if( e instanceof ClickhouseException && ( ( ClickhouseException ) e ).code > 0 ) {
+            var ce = ( ClickhouseException ) e;
+            var code = ce.getErrorCode();
+            return String.valueOf( code > 0 ? code : ce.code );
+        }
+        return "io";
+    }
+}
@@ -31,56 +31,350 @@ import oap.util.Throwables;
 import org.apache.commons.io.IOUtils;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static java.net.HttpURLConnection.HTTP_OK;
 
 @Slf4j
 public class ClickhouseStream implements Closeable {
+    public static final int DRAIN_LIMIT = 1024 * 1024;
+
     private final OutputStream outputStream;
-    private final HttpURLConnection http;
+    private final Connection connection;
     private InputStream inputStream = null;
+    private boolean requestCompleted = false;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ClickhouseException failure;
+    private final AtomicReference<Consumer<Throwable>> listener = new AtomicReference<>();
+    private final AtomicReference<Runnable> abortListener = new AtomicReference<>();
+    private Consumer<QueryStats> progress;
+    private QueryStats stats;
 
     public ClickhouseStream( OutputStream os, HttpURLConnection http ) {
+        this( os, new UrlConnection( http ) );
+    }
+
+    public ClickhouseStream( OutputStream os, Connection connection ) {
         this.outputStream = os;
-        this.http = http;
+        this.connection = connection;
+    }
+
+    /**
+     * @param listener called once the exchange is over, with the failure or null
+     */
+    public ClickhouseStream onComplete( Consumer<Throwable> listener ) {
+        this.listener.set( listener );
+        return this;
+    }
+
+    /**
+     * @param listener called once if the exchange is dropped before its end, the query may still run on the server
+     */
+    public ClickhouseStream onAbort( Runnable listener ) {
+        this.abortListener.set( listener );
+        return this;
+    }
+
+    /**
+     * @param progress gets X-ClickHouse-Progress headers, as they arrive on a {@link PooledHttpExchange}, otherwise
+     *                 the last one once the response head is read
+     */
+    public ClickhouseStream onProgress( Consumer<QueryStats> progress ) {
+        this.progress = progress;
+        if( connection instanceof PooledHttpExchange )
+            ( ( PooledHttpExchange ) connection ).onHeader( ( name, value ) -> {
+                if( "x-clickhouse-progress".equals( name ) ) progress( value );
+            } );
+        return this;
+    }
+
+    /**
+     * @return X-ClickHouse-Summary, null until the response head is read
+     */
+    public QueryStats getStats() {
+        return stats;
+    }
+
+    private void progress( String header ) {
+        try {
+            progress.accept( QueryStats.parse( connection.getHeader( "X-ClickHouse-Query-Id" ), header ) );
+        } catch( RuntimeException e ) {
+            log.warn( "progress listener failed", e );
+        }
+    }
+
+    private void aborted() {
+        var listener = this.abortListener.getAndSet( null );
+        if( listener != null ) listener.run();
+    }
+
+    private void complete( Throwable e ) {
+        var listener = this.listener.getAndSet( null );
+        if( listener != null ) listener.accept( e );
     }
 
     @Override
-    @SuppressWarnings( "checkstyle:EmptyBlock" )
     public void close() {
-        try( var ignored = getInputStream() ) {
+        if( !closed.compareAndSet( false, true ) ) return;
+        if( failure != null ) return;
+
+        try {
+            getInputStream().close();
+            complete( null );
         } catch( IOException e ) {
+            complete( e );
             throw Throwables.propagate( e );
         }
     }
 
+    /**
+     * Drops the connection without reading the rest of the response; the server cancels the query once it fails to
+     * send the next block.
+     */
+    public void abort() {
+        abort( new CancellationException( "aborted" ) );
+    }
+
+    /**
+     * @param cause the exchange completes with it, wrapped in a {@link ClickhouseException}
+     */
+    public void abort( Exception cause ) {
+        if( !closed.compareAndSet( false, true ) ) return;
+
+        connection.abort();
+        aborted();
+        complete( new ClickhouseException( cause ) );
+    }
+
+    /**
+     * Completes the request body and releases the calling thread; the returned future completes once the server
+     * has accepted the request, or fails with {@link ClickhouseException}.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        try {
+            completeRequest();
+        } catch( IOException e ) {
+            complete( e );
+            return CompletableFuture.failedFuture( e );
+        }
+
+        return connection.responseCode()
+            .whenComplete( ( code, e ) -> {
+                if( e != null ) complete( e );
+            } )
+            .thenAccept( code -> close() );
+    }
+
     public OutputStream getOutputStream() {
         return new CLOutputStream( outputStream );
     }
 
     public InputStream getInputStream() {
+        if( failure != null ) throw failure;
+
         try {
             if( inputStream == null ) {
-                outputStream.flush();
-                Closeables.close( outputStream );
+                completeRequest();
 
-                if( http.getResponseCode() != HTTP_OK ) {
-                    var body = IOUtils.toString( http.getErrorStream(), StandardCharsets.UTF_8 );
-                    log.error( "url code = {}, body = {}", http.getResponseCode(), body );
-                    throw new ClickhouseException( "", http.getResponseCode(), body );
+                var code = connection.getResponseCode();
+                var compression = HttpCompression.ofEncoding( connection.getHeader( "Content-Encoding" ) );
+                stats = QueryStats.parse( connection.getHeader( "X-ClickHouse-Query-Id" ), connection.getHeader( "X-ClickHouse-Summary" ) );
+                if( progress != null && !( connection instanceof PooledHttpExchange ) ) {
+                    var last = connection.getHeader( "X-ClickHouse-Progress" );
+                    if( last != null ) progress( last );
+                }
+                if( code != HTTP_OK ) {
+                    var body = IOUtils.toString( compression.decompress( connection.getErrorStream() ), StandardCharsets.UTF_8 );
+                    log.error( "url code = {}, body = {}", code, body );
+                    failure = new ClickhouseException( "", code, body );
+                    complete( failure );
+                    throw failure;
                 }
 
-                inputStream = http.getInputStream();
+                inputStream = compression.decompress( new DrainingInputStream( connection.getInputStream() ) );
             }
 
             return inputStream;
         } catch( IOException e ) {
-            throw Throwables.propagate( e );
+            connection.abort();
+            aborted();
+            // remembered, so that close() does not read the dropped connection again
+            failure = new ClickhouseException( e );
+            complete( e );
+            throw failure;
+        }
+    }
+
+    private void completeRequest() throws IOException {
+        if( requestCompleted ) return;
+        requestCompleted = true;
+
+        outputStream.flush();
+        Closeables.close( outputStream );
+    }
+
+    public interface Connection {
+        int getResponseCode() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        InputStream getErrorStream() throws IOException;
+
+        default String getHeader( String name ) {
+            return null;
+        }
+
+        /**
+         * Drops the underlying connection instead of reading the rest of the response.
+         */
+        default void abort() {}
+
+        default CompletableFuture<Integer> responseCode() {
+            try {
+                return CompletableFuture.completedFuture( getResponseCode() );
+            } catch( IOException e ) {
+                return CompletableFuture.failedFuture( e );
+            }
+        }
+    }
+
+    public static class UrlConnection implements Connection {
+        private final HttpURLConnection http;
+
+        public UrlConnection( HttpURLConnection http ) {
+            this.http = http;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return http.getResponseCode();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return http.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return http.getErrorStream();
+        }
+
+        @Override
+        public String getHeader( String name ) {
+            return http.getHeaderField( name );
+        }
+
+        @Override
+        public void abort() {
+            http.disconnect();
+        }
+    }
+
+    public static class HttpClientConnection implements Connection {
+        private final CompletableFuture<HttpResponse<InputStream>> response;
+        private final long timeout;
+
+        public HttpClientConnection( CompletableFuture<HttpResponse<InputStream>> response, long timeout ) {
+            this.response = response;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return get().statusCode();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return get().body();
+        }
+
+        @Override
+        public InputStream getErrorStream() throws IOException {
+            return get().body();
+        }
+
+        @Override
+        public String getHeader( String name ) {
+            try {
+                var values = get().headers().allValues( name );
+                return values.isEmpty() ? null : values.get( values.size() - 1 );
+            } catch( IOException e ) {
+                return null;
+            }
+        }
+
+        @Override
+        public CompletableFuture<Integer> responseCode() {
+            return response.thenApply( HttpResponse::statusCode );
+        }
+
+        @Override
+        public void abort() {
+            if( !response.cancel( true ) && !response.isCompletedExceptionally() )
+                Closeables.close( response.join().body() );
+        }
+
+        private HttpResponse<InputStream> get() throws IOException {
+            try {
+                return timeout > 0 ? response.get( timeout, TimeUnit.MILLISECONDS ) : response.get();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new IOException( e );
+            } catch( CancellationException e ) {
+                throw new IOException( "request cancelled", e );
+            } catch( ExecutionException | CompletionException e ) {
+                if( e.getCause() instanceof IOException ) throw ( IOException ) e.getCause();
+                throw new IOException( e.getCause() );
+            } catch( TimeoutException e ) {
+                response.cancel( true );
+                throw new IOException( e );
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the response on close so that the connection can be reused. A response larger than
+     * {@link #DRAIN_LIMIT} is not worth reading, the connection is dropped instead.
+     */
+    private class DrainingInputStream extends FilterInputStream {
+        private boolean closed = false;
+
+        private DrainingInputStream( InputStream in ) {
+            super( in );
+        }
+
+        @Override
+        public void close() throws IOException {
+            if( closed ) return;
+            closed = true;
+
+            try {
+                var buffer = new byte[8192];
+                long drained = 0;
+                int n;
+                while( drained < DRAIN_LIMIT && ( n = in.read( buffer ) ) >= 0 ) drained += n;
+                if( drained >= DRAIN_LIMIT ) connection.abort();
+            } catch( IOException e ) {
+                connection.abort();
+            }
+            in.close();
         }
     }
 
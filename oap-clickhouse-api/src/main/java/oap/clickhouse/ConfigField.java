@@ -111,8 +111,12 @@ public class ConfigField {
         return "ALTER TABLE ${DATABASE}.${TABLE} ADD COLUMN " + getColumnSql() + "${AFTER_OR_FIRST}";
     }
 
+    String getClickhouseType() {
+        return type.toClickhouseType( length, enumName, lowCardinality.filter( lc -> lc ).map( lc -> LowCardinality.ON ).orElse( LowCardinality.OFF ) );
+    }
+
     String getColumnSql() {
-        return name + ' ' + type.toClickhouseType( length, enumName, lowCardinality.filter( lc -> lc ).map( lc -> LowCardinality.ON ).orElse( LowCardinality.OFF ) ) + materialized
+        return name + ' ' + getClickhouseType() + materialized
             .map( m -> " MATERIALIZED " + m )
             .orElse( defaultValue.map( dv -> " DEFAULT " + valueToSql( dv ) ).orElse( "" ) )
             + ( codec.isEmpty() ? "" : " " + codec );
@@ -133,7 +137,7 @@ public class ConfigField {
     }
 
     public boolean typeEquals( String type, String codec ) {
-        return this.type.toClickhouseType( length, enumName, lowCardinality.filter( lc -> lc ).map( lc -> LowCardinality.ON ).orElse( LowCardinality.OFF ) ).equals( type )
+        return getClickhouseType().equals( type )
             && this.codec.equals( codec );
     }
 }
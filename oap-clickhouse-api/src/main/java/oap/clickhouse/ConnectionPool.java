@@ -0,0 +1,266 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Keep-alive sockets shared by a client and all of its database/user views.
+ * At most {@code maxConnectionsPerHost} sockets per host are in use at once, idle ones are closed after {@code idleTimeout}.
+ */
+@Slf4j
+public class ConnectionPool implements Closeable {
+    /**
+     * socket write buffer; a request shorter than this reaches the wire only when flushed
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    public final int maxConnectionsPerHost;
+    public final long idleTimeout;
+    public final long connectTimeout;
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public ConnectionPool( int maxConnectionsPerHost, long idleTimeout, long connectTimeout ) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+
+        evictor = Executors.newSingleThreadScheduledExecutor( r -> {
+            var thread = new Thread( r, "clickhouse-pool-evictor" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        var period = Math.max( idleTimeout / 2, 100 );
+        evictor.scheduleWithFixedDelay( this::evictIdle, period, period, MILLISECONDS );
+    }
+
+    public PooledConnection acquire( String host, int port, long timeout ) throws IOException {
+        if( closed ) throw new IOException( "connection pool is closed" );
+
+        var route = routes.computeIfAbsent( host + ":" + port, k -> new Route( host, port ) );
+        try {
+            if( !route.permits.tryAcquire( timeout > 0 ? timeout : Long.MAX_VALUE, MILLISECONDS ) )
+                throw new SocketTimeoutException( "no free connection to " + route.key + " within " + timeout + "ms, max " + maxConnectionsPerHost );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+
+        try {
+            PooledSocket socket;
+            while( ( socket = route.idle.pollFirst() ) != null ) {
+                if( socket.isReusable( idleTimeout ) ) return new PooledConnection( socket, true );
+                socket.close();
+            }
+
+            return new PooledConnection( new PooledSocket( route, connectTimeout ), false );
+        } catch( IOException | RuntimeException e ) {
+            route.permits.release();
+            throw e;
+        }
+    }
+
+    public void evictIdle() {
+        var now = System.currentTimeMillis();
+        for( var route : routes.values() ) {
+            for( var socket : route.idle ) {
+                if( now - socket.lastUsed >= idleTimeout && route.idle.remove( socket ) ) {
+                    log.trace( "evict idle connection to {}", route.key );
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    public int getOpenConnections() {
+        return routes.values().stream().mapToInt( r -> r.open.get() ).sum();
+    }
+
+    public int getIdleConnections() {
+        return routes.values().stream().mapToInt( r -> r.idle.size() ).sum();
+    }
+
+    public int getActiveConnections() {
+        return routes.values().stream().mapToInt( r -> maxConnectionsPerHost - r.permits.availablePermits() ).sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for( var route : routes.values() ) {
+            PooledSocket socket;
+            while( ( socket = route.idle.pollFirst() ) != null ) socket.close();
+        }
+    }
+
+    private class Route {
+        final String host;
+        final int port;
+        final String key;
+        final Semaphore permits = new Semaphore( maxConnectionsPerHost, true );
+        final ConcurrentLinkedDeque<PooledSocket> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger open = new AtomicInteger();
+
+        Route( String host, int port ) {
+            this.host = host;
+            this.port = port;
+            this.key = host + ":" + port;
+        }
+    }
+
+    /**
+     * One use of a pooled socket, from {@link #acquire(String, int, long)} to {@link #release(boolean)} or {@link #abort()}.
+     * Once ended it no longer touches the socket, which may already serve another request.
+     */
+    public class PooledConnection {
+        public final String host;
+        public final int port;
+        public final InputStream in;
+        public final OutputStream out;
+        private final PooledSocket socket;
+        private final boolean reused;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private PooledConnection( PooledSocket socket, boolean reused ) {
+            this.socket = socket;
+            this.reused = reused;
+            this.host = socket.route.host;
+            this.port = socket.route.port;
+            this.in = socket.in;
+            this.out = socket.out;
+        }
+
+        public boolean isReused() {
+            return reused;
+        }
+
+        public void setReadTimeout( long timeout ) throws IOException {
+            socket.channel.socket().setSoTimeout( ( int ) Math.min( Integer.MAX_VALUE, Math.max( timeout, 0 ) ) );
+        }
+
+        /**
+         * @param reusable the response has been read to its end and the server did not ask to close the connection
+         */
+        public void release( boolean reusable ) {
+            if( !ended.compareAndSet( false, true ) ) return;
+
+            socket.lastUsed = System.currentTimeMillis();
+            if( reusable && !closed && socket.channel.isOpen() ) socket.route.idle.offerFirst( socket );
+            else socket.close();
+
+            socket.route.permits.release();
+        }
+
+        /**
+         * Closes the socket, may be called from another thread to interrupt a blocked read or write.
+         * Does nothing once the connection has been released.
+         */
+        public void abort() {
+            if( !ended.compareAndSet( false, true ) ) return;
+
+            socket.close();
+            socket.route.permits.release();
+        }
+    }
+
+    private class PooledSocket {
+        private final Route route;
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledSocket( Route route, long connectTimeout ) throws IOException {
+            this.route = route;
+
+            channel = SocketChannel.open();
+            try {
+                var socket = channel.socket();
+                socket.setTcpNoDelay( true );
+                socket.setKeepAlive( true );
+                socket.connect( new InetSocketAddress( route.host, route.port ), ( int ) connectTimeout );
+                in = new BufferedInputStream( socket.getInputStream(), 64 * 1024 );
+                out = new BufferedOutputStream( socket.getOutputStream(), BUFFER_SIZE );
+            } catch( IOException | RuntimeException e ) {
+                channel.close();
+                throw e;
+            }
+            route.open.incrementAndGet();
+            log.trace( "new connection to {}", route.key );
+        }
+
+        private boolean isReusable( long idleTimeout ) {
+            if( System.currentTimeMillis() - lastUsed >= idleTimeout || !channel.isOpen() ) return false;
+
+            try {
+                if( in.available() > 0 ) return false;
+
+                channel.configureBlocking( false );
+                try {
+                    return channel.read( ByteBuffer.allocate( 1 ) ) == 0;
+                } finally {
+                    channel.configureBlocking( true );
+                }
+            } catch( IOException e ) {
+                return false;
+            }
+        }
+
+        private void close() {
+            if( !closed.compareAndSet( false, true ) ) return;
+
+            try {
+                channel.close();
+            } catch( IOException e ) {
+                log.trace( e.getMessage(), e );
+            }
+            route.open.decrementAndGet();
+        }
+    }
+}
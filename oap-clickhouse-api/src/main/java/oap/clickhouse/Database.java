@@ -43,11 +43,15 @@ public class Database {
     private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, View> views = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Dictionary> dictionaries = new ConcurrentHashMap<>();
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final DatabaseSchema schema;
 
     public Database( String database, ClickhouseClient client, SystemSettings settings ) {
         this.database = database;
         this.client = client;
         this.settings = settings;
+        this.schema = new DatabaseSchema( this );
     }
 
     public Table getTable( String name ) {
@@ -121,9 +125,14 @@ public class Database {
         refresh();
     }
 
+    DatabaseSchema schema() {
+        return schema;
+    }
+
     public void refresh() {
         tables.clear();
         views.clear();
         dictionaries.clear();
+        schema.invalidateAll();
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import oap.util.Lists;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+
+/**
+ * system.tables, system.columns and system.data_skipping_indices of a whole database, loaded with one query each on
+ * first use and again when older than a minute. A table {@link #invalidate(String)}d after a change is reloaded on its own.
+ */
+@Slf4j
+final class DatabaseSchema {
+    private static final long TTL = 60_000;
+    private static final int UNKNOWN_IDENTIFIER = 47;
+    private static final int UNKNOWN_TABLE = 60;
+    private static final String TABLES_QUERY =
+        "SELECT name, engine, engine_full, partition_key, primary_key, dependencies_table, create_table_query "
+            + "FROM system.tables WHERE database = {database:String}";
+    private static final String COLUMNS_QUERY =
+        "SELECT table, name, type, default_kind, default_expression, compression_codec, "
+            + "is_in_partition_key, is_in_sorting_key, is_in_primary_key, is_in_sampling_key "
+            + "FROM system.columns WHERE database = {database:String}";
+    private static final String INDICES_QUERY =
+        "SELECT table, name, type_full, expr, granularity FROM system.data_skipping_indices WHERE database = {database:String}";
+
+    private final Database database;
+    private final Set<String> stale = new HashSet<>();
+    private Map<String, TableSchema> tables;
+    private long loaded;
+    /**
+     * the server has no system.data_skipping_indices or no type_full in it (before 23.1), indexes come from create_table_query
+     */
+    private boolean noIndices = false;
+
+    DatabaseSchema( Database database ) {
+        this.database = database;
+    }
+
+    /**
+     * @return null if the table does not exist
+     */
+    synchronized TableSchema get( String table ) {
+        var now = System.currentTimeMillis();
+        if( tables == null || now - loaded >= TTL ) {
+            tables = load( null );
+            loaded = now;
+            stale.clear();
+        } else if( stale.contains( table ) ) {
+            var reloaded = load( table );
+            tables.remove( table );
+            tables.putAll( reloaded );
+            stale.remove( table );
+        }
+        return tables.get( table );
+    }
+
+    synchronized void invalidate( String table ) {
+        if( tables != null ) stale.add( table );
+    }
+
+    synchronized void invalidateAll() {
+        tables = null;
+        stale.clear();
+    }
+
+    private Map<String, TableSchema> load( String table ) {
+        log.trace( "load schema of {}, table {}", database.getName(), table );
+
+        var client = database.client.withParams( table == null
+            ? Map.of( "database", database.getName() )
+            : Map.of( "database", database.getName(), "table", table ) );
+        var filter = table == null ? "" : " AND table = {table:String}";
+
+        var result = new HashMap<String, TableSchema>();
+        client.getTsv( TABLES_QUERY + ( table == null ? "" : " AND name = {table:String}" ) + " FORMAT TabSeparated", row -> {
+            var name = row.getString( 0 );
+            result.put( name, new TableSchema( name, row.getString( 1 ), row.getString( 2 ), row.getString( 3 ),
+                row.getString( 4 ), row.getString( 5 ), row.getString( 6 ) ) );
+        }, false );
+
+        client.getTsv( COLUMNS_QUERY + filter + " FORMAT TabSeparated", row -> {
+            var schema = result.get( row.getString( 0 ) );
+            if( schema == null ) return;
+
+            var name = row.getString( 1 );
+            schema.fields.put( name, new AbstractTable.FieldInfo( name, row.getString( 2 ), row.getString( 3 ),
+                row.getString( 4 ), row.getString( 5 ),
+                row.equalsAscii( 6, "1" ), row.equalsAscii( 7, "1" ),
+                row.equalsAscii( 8, "1" ), row.equalsAscii( 9, "1" ) ) );
+        }, false );
+
+        if( !noIndices ) {
+            try {
+                for( var schema : result.values() ) schema.indexes = new ArrayList<>();
+                client.getTsv( INDICES_QUERY + filter + " FORMAT TabSeparated", row -> {
+                    var schema = result.get( row.getString( 0 ) );
+                    if( schema == null ) return;
+
+                    var expr = row.getString( 3 ).trim();
+                    if( expr.startsWith( "(" ) && expr.endsWith( ")" ) ) expr = expr.substring( 1, expr.length() - 1 );
+                    schema.indexes.add( ConfigIndex.index( row.getString( 1 ), List.of( expr.trim().split( "\\s*,\\s*" ) ),
+                        row.getString( 2 ), row.getInt( 4 ) ) );
+                }, false );
+            } catch( ClickhouseException e ) {
+                if( e.getErrorCode() != UNKNOWN_IDENTIFIER && e.getErrorCode() != UNKNOWN_TABLE ) throw e;
+                log.debug( "no system.data_skipping_indices.type_full, indexes are parsed from create_table_query" );
+                noIndices = true;
+                for( var schema : result.values() ) schema.indexes = null;
+            }
+        }
+
+        return result;
+    }
+
+    @ToString
+    static final class TableSchema {
+        final String name;
+        final String engine;
+        final String engineFull;
+        final String partitionKey;
+        final List<String> primaryKey;
+        final List<String> dependenciesTable;
+        final String createTableQuery;
+        final LinkedHashMap<String, AbstractTable.FieldInfo> fields = new LinkedHashMap<>();
+        /**
+         * null - unknown
+         */
+        List<ConfigIndex> indexes;
+
+        TableSchema( String name, String engine, String engineFull, String partitionKey, String primaryKey,
+                     String dependenciesTable, String createTableQuery ) {
+            this.name = name;
+            this.engine = engine;
+            this.engineFull = engineFull;
+            this.partitionKey = partitionKey;
+            this.primaryKey = Lists.map( asList( StringUtils.split( primaryKey, ',' ) ), String::trim );
+            this.dependenciesTable = Lists.map( asList( StringUtils.split( StringUtils.strip( dependenciesTable, "[]" ), ',' ) ),
+                t -> t.substring( 1, t.length() - 1 ) );
+            this.createTableQuery = createTableQuery;
+        }
+    }
+}
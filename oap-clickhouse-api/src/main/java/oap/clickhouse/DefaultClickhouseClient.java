@@ -31,37 +31,79 @@ import lombok.extern.slf4j.Slf4j;
 import oap.util.Dates;
 import oap.util.Strings;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.joda.time.DateTimeUtils;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.joining;
 import static oap.util.Dates.m;
 import static oap.util.Dates.s;
 
 @Slf4j
 @SuppressWarnings( "checkstyle:MemberName" )
 public class DefaultClickhouseClient implements ClickhouseClient {
-    private static final String PUT = "INSERT INTO ${TABLE} ${FIELDS} FORMAT ${FORMAT}";
-    private static final String DROP_PARTITION = "ALTER TABLE ${TABLE} DROP PARTITION '${PARTITION}'";
-    private static final String DROP_TABLE = "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}";
-    private static final String DROP_DATABASE = "DROP DATABASE IF EXISTS ${DATABASE}";
-    private static final String CREATE_DATABASE = "CREATE DATABASE IF NOT EXISTS ${DATABASE}";
+    private static final QueryTemplate PUT = QueryTemplate.parse( "INSERT INTO ${TABLE} ${FIELDS} FORMAT ${FORMAT}" );
+    private static final QueryTemplate DROP_PARTITION = QueryTemplate.parse( "ALTER TABLE ${TABLE} DROP PARTITION '${PARTITION}'" );
+    private static final QueryTemplate DROP_TABLE = QueryTemplate.parse( "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}" );
+    private static final QueryTemplate DROP_DATABASE = QueryTemplate.parse( "DROP DATABASE IF EXISTS ${DATABASE}" );
+    private static final QueryTemplate CREATE_DATABASE = QueryTemplate.parse( "CREATE DATABASE IF NOT EXISTS ${DATABASE}" );
+    private static final QueryTemplate KILL_QUERY = QueryTemplate.parse( "KILL QUERY WHERE query_id = '${QUERY_ID}' ASYNC" );
+    private static final Pattern TRAILING_FORMAT = Pattern.compile( "\\s+FORMAT\\s+\\w+\\s*;?\\s*$", Pattern.CASE_INSENSITIVE );
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor( 1, r -> {
+        var thread = new Thread( r, "clickhouse-deadlines" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy( true );
+    }
+
     public final String host;
     public final int port;
     private final String database;
@@ -72,9 +114,79 @@ public class DefaultClickhouseClient implements ClickhouseClient {
     public String charsetName = "UTF-8";
     public int chunkSize = 1024 * 1024;
     public long timeout;
+    public long connectTimeout;
+    /**
+     * wait for the response head and between reads, 0 - the call's timeout
+     */
+    public long firstByteTimeout = 0;
+    /**
+     * send KILL QUERY when a call passes its timeout or its stream is closed before the end
+     */
+    public boolean killOnAbort = true;
+    /**
+     * http_headers_progress_interval_ms for {@link #withProgress(Consumer)}
+     */
+    public long progressInterval = s( 1 );
+    public Transport transport = Transport.URL_CONNECTION;
+    public HttpCompression compression = HttpCompression.NONE;
+    public NativeCompression nativeCompression = NativeCompression.NONE;
+    public int maxConnectionsPerHost = 16;
+    public long idleTimeout = s( 2 );
+    public int warmUpConnections = 2;
+    public int retries = 3;
+    public long retryDelay = 100;
+    public long maxRetryDelay = s( 10 );
+    /**
+     * host:port replicas, empty - {@code host}:{@code port} only
+     */
+    public List<String> hosts = List.of();
+    /**
+     * host:port for inserts, empty - {@code hosts}
+     */
+    public List<String> writeHosts = List.of();
+    public LoadBalancing readBalancing = LoadBalancing.ROUND_ROBIN;
+    public LoadBalancing writeBalancing = LoadBalancing.LEAST_OUTSTANDING;
+    public long healthCheckInterval = s( 5 );
+    public int breakerFailures = 3;
+    public long breakerTimeout = s( 10 );
+    /**
+     * ClickHouse settings sent with every request, e.g. max_threads, max_memory_usage
+     */
+    public Map<String, Object> settings = Map.of();
+    /**
+     * named sets of settings for {@link #withProfile(String)}, e.g. ingestion, reporting
+     */
+    public Map<String, Map<String, Object>> profiles = Map.of();
+    /**
+     * {@link #withResultCache()}: the size of all cached responses, how long one is fresh
+     * and how long after that it is still served while being reloaded
+     */
+    public long resultCacheSize = 64 * 1024 * 1024;
+    public long resultCacheTtl = s( 5 );
+    public long resultCacheStaleTtl = 0;
+    /**
+     * threads reloading stale entries, reloads beyond {@code resultCacheReloadQueue} waiting ones are skipped
+     */
+    public int resultCacheReloadThreads = 2;
+    public int resultCacheReloadQueue = 64;
+    /**
+     * concurrent identical SELECTs of get, getLines and getTsv share one request: the first caller reads the response
+     * as it arrives and keeps a copy of up to {@code singleFlightMaxBytes} for the others, which send their own
+     * request if it is larger
+     */
+    public boolean singleFlight = false;
+    public long singleFlightMaxBytes = 4 * 1024 * 1024;
 
-    private String user = null;
-    private SystemSettings settings;
+    private final String user;
+    private final AtomicReference<ConnectionPool> pool;
+    private final AtomicReference<Replicas> replicas;
+    private final AtomicReference<ResultCache> resultCache;
+    private final SingleFlight<byte[]> inFlight;
+    private final Map<String, Object> overrides;
+    private final Consumer<QueryStats> statsListener;
+    private final Consumer<QueryStats> progressListener;
+    private final boolean cached;
+    private SystemSettings systemSettings;
 
     public DefaultClickhouseClient( String host, int port, String database ) {
         this( host, port, database, s( 60 ), m( 5 ) );
@@ -108,6 +220,16 @@ public class DefaultClickhouseClient implements ClickhouseClient {
         this.max_expanded_ast_elements = max_expanded_ast_elements;
         this.charsetName = charsetName;
         this.client = client;
+        this.connectTimeout = client.connectTimeout().map( Duration::toMillis ).orElse( timeout );
+        this.user = null;
+        this.pool = new AtomicReference<>();
+        this.replicas = new AtomicReference<>();
+        this.resultCache = new AtomicReference<>();
+        this.inFlight = new SingleFlight<>();
+        this.overrides = Map.of();
+        this.statsListener = null;
+        this.progressListener = null;
+        this.cached = false;
 
         log.info( "host: {}, port: {}, timeout: {}, maxQuerySize: {}, max_ast_elements: {}, max_expanded_ast_elements: {}, charsetName: {}",
             host, port, Dates.durationToString( timeout ),
@@ -117,8 +239,182 @@ public class DefaultClickhouseClient implements ClickhouseClient {
             charsetName );
     }
 
+    /**
+     * A view of {@code parent} for another database or user, sharing its connections.
+     */
+    private DefaultClickhouseClient( DefaultClickhouseClient parent, String database, String user, Map<String, Object> overrides,
+                                     Consumer<QueryStats> statsListener, Consumer<QueryStats> progressListener, boolean cached ) {
+        this.host = parent.host;
+        this.port = parent.port;
+        this.database = database;
+        this.user = user;
+        this.client = parent.client;
+        this.pool = parent.pool;
+        this.replicas = parent.replicas;
+        this.resultCache = parent.resultCache;
+        this.inFlight = parent.inFlight;
+        this.maxQuerySize = parent.maxQuerySize;
+        this.max_ast_elements = parent.max_ast_elements;
+        this.max_expanded_ast_elements = parent.max_expanded_ast_elements;
+        this.charsetName = parent.charsetName;
+        this.chunkSize = parent.chunkSize;
+        this.timeout = parent.timeout;
+        this.connectTimeout = parent.connectTimeout;
+        this.firstByteTimeout = parent.firstByteTimeout;
+        this.killOnAbort = parent.killOnAbort;
+        this.progressInterval = parent.progressInterval;
+        this.transport = parent.transport;
+        this.compression = parent.compression;
+        this.nativeCompression = parent.nativeCompression;
+        this.maxConnectionsPerHost = parent.maxConnectionsPerHost;
+        this.idleTimeout = parent.idleTimeout;
+        this.warmUpConnections = parent.warmUpConnections;
+        this.retries = parent.retries;
+        this.retryDelay = parent.retryDelay;
+        this.maxRetryDelay = parent.maxRetryDelay;
+        this.hosts = parent.hosts;
+        this.writeHosts = parent.writeHosts;
+        this.readBalancing = parent.readBalancing;
+        this.writeBalancing = parent.writeBalancing;
+        this.healthCheckInterval = parent.healthCheckInterval;
+        this.breakerFailures = parent.breakerFailures;
+        this.breakerTimeout = parent.breakerTimeout;
+        this.settings = parent.settings;
+        this.profiles = parent.profiles;
+        this.resultCacheSize = parent.resultCacheSize;
+        this.resultCacheTtl = parent.resultCacheTtl;
+        this.resultCacheStaleTtl = parent.resultCacheStaleTtl;
+        this.resultCacheReloadThreads = parent.resultCacheReloadThreads;
+        this.resultCacheReloadQueue = parent.resultCacheReloadQueue;
+        this.singleFlight = parent.singleFlight;
+        this.singleFlightMaxBytes = parent.singleFlightMaxBytes;
+        this.overrides = overrides;
+        this.statsListener = statsListener;
+        this.progressListener = progressListener;
+        this.cached = cached;
+        this.systemSettings = Objects.equals( parent.database, database ) ? parent.systemSettings : null;
+    }
+
     public void start() {
-        settings = new SystemSettings( this );
+        if( transport == Transport.POOLED )
+            for( var replica : replicas().all() ) warmUp( replica.host, replica.port );
+        if( !hosts.isEmpty() || !writeHosts.isEmpty() )
+            replicas().startHealthCheck( healthCheckInterval, this::ping );
+
+        systemSettings = new SystemSettings( this );
+    }
+
+    public void stop() {
+        synchronized( replicas ) {
+            var r = replicas.getAndSet( null );
+            if( r != null ) r.close();
+        }
+        synchronized( pool ) {
+            var connectionPool = pool.getAndSet( null );
+            if( connectionPool != null ) connectionPool.close();
+        }
+        synchronized( resultCache ) {
+            var cache = resultCache.getAndSet( null );
+            if( cache != null ) cache.close();
+        }
+    }
+
+    public boolean ping() {
+        return ping( host, port );
+    }
+
+    public boolean ping( String host, int port ) {
+        try {
+            return switch( transport ) {
+                case URL_CONNECTION -> {
+                    var http = ( HttpURLConnection ) new URL( "http://" + host + ":" + port + "/ping" ).openConnection();
+                    http.setConnectTimeout( ( int ) connectTimeout );
+                    http.setReadTimeout( ( int ) timeout );
+                    try( var in = http.getInputStream() ) {
+                        in.readAllBytes();
+                    }
+                    yield http.getResponseCode() == HTTP_OK;
+                }
+                case HTTP_CLIENT -> client.send( HttpRequest.newBuilder( URI.create( "http://" + host + ":" + port + "/ping" ) )
+                    .version( HttpClient.Version.HTTP_1_1 )
+                    .timeout( Duration.ofMillis( timeout ) )
+                    .build(), HttpResponse.BodyHandlers.discarding() ).statusCode() == HTTP_OK;
+                case POOLED -> {
+                    var exchange = PooledHttpExchange.get( pool(), host, port, "/ping", timeout );
+                    try( var in = exchange.getInputStream() ) {
+                        in.readAllBytes();
+                    }
+                    yield exchange.getResponseCode() == HTTP_OK;
+                }
+            };
+        } catch( IOException e ) {
+            log.trace( "ping {}:{}: {}", host, port, e.getMessage() );
+            return false;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void warmUp( String host, int port ) {
+        var count = Math.min( warmUpConnections, maxConnectionsPerHost );
+        var exchanges = new ArrayList<PooledHttpExchange>();
+        try {
+            for( var i = 0; i < count; i++ )
+                exchanges.add( PooledHttpExchange.get( pool(), host, port, "/ping", connectTimeout ) );
+            for( var exchange : exchanges ) {
+                try( var in = exchange.getInputStream() ) {
+                    in.readAllBytes();
+                }
+            }
+            log.debug( "warmed up {} connections to {}:{}", exchanges.size(), host, port );
+        } catch( IOException e ) {
+            log.warn( "cannot warm up connections to {}:{}: {}", host, port, e.getMessage() );
+            exchanges.forEach( PooledHttpExchange::abort );
+        }
+    }
+
+    public Replicas replicas() {
+        synchronized( replicas ) {
+            var r = replicas.get();
+            if( r == null ) {
+                r = new Replicas( hosts.isEmpty() ? List.of( host + ":" + port ) : hosts, writeHosts,
+                    readBalancing, writeBalancing, breakerFailures, breakerTimeout );
+                replicas.set( r );
+            }
+            return r;
+        }
+    }
+
+    public ConnectionPool pool() {
+        synchronized( pool ) {
+            var connectionPool = pool.get();
+            if( connectionPool == null ) {
+                connectionPool = new ConnectionPool( maxConnectionsPerHost, idleTimeout, connectTimeout );
+                ClickhouseMetrics.register( connectionPool );
+                pool.set( connectionPool );
+            }
+            return connectionPool;
+        }
+    }
+
+    private ResultCache resultCache() {
+        synchronized( resultCache ) {
+            var cache = resultCache.get();
+            if( cache == null ) {
+                var threads = new AtomicInteger();
+                var reloader = new ThreadPoolExecutor( resultCacheReloadThreads, resultCacheReloadThreads, 1, MINUTES,
+                    new LinkedBlockingQueue<>( resultCacheReloadQueue ), r -> {
+                        var thread = new Thread( r, "clickhouse-cache-reload-" + threads.incrementAndGet() );
+                        thread.setDaemon( true );
+                        return thread;
+                    } );
+                reloader.allowCoreThreadTimeOut( true );
+                cache = new ResultCache( resultCacheSize, resultCacheTtl, resultCacheStaleTtl, reloader );
+                resultCache.set( cache );
+            }
+            return cache;
+        }
     }
 
     @Override
@@ -147,7 +443,43 @@ public class DefaultClickhouseClient implements ClickhouseClient {
                 case "FIELDS" -> fields.isEmpty() ? "" : Strings.join( ",", fields, "(", ")" );
                 case "FORMAT" -> format.name();
                 default -> null;
-            } ), true ), true, timeout ).getOutputStream();
+            } ), true, true, Map.of(), table ), true, timeout ).getOutputStream();
+    }
+
+    @Override
+    public void insert( String table, DataFormat format, Collection<String> fields, String token, InsertBody body, long timeout ) {
+        var sql = getSubstitute( table, PUT, v ->
+            switch( v ) {
+                case "FIELDS" -> fields.isEmpty() ? "" : Strings.join( ",", fields, "(", ")" );
+                case "FORMAT" -> format.name();
+                default -> null;
+            } );
+
+        for( var attempt = 0; ; attempt++ ) {
+            // a KILL of an aborted attempt must not hit its retry
+            var settings = Map.of( "insert_deduplication_token", token, "query_id", token + "-" + attempt );
+            try( var out = execute( new Query( sql, true, true, settings, table ), true, timeout ).getOutputStream() ) {
+                body.writeTo( out );
+                return;
+            } catch( IOException | RuntimeException e ) {
+                if( attempt >= retries || !ClickhouseException.isRetryable( e ) ) {
+                    if( e instanceof ClickhouseException ) throw ( ClickhouseException ) e;
+                    throw new ClickhouseException( e );
+                }
+
+                var delay = Math.min( maxRetryDelay, retryDelay << Math.min( attempt, 20 ) );
+                delay = delay / 2 + ThreadLocalRandom.current().nextLong( delay / 2 + 1 );
+                var reason = e instanceof ClickhouseException ? ( ( ClickhouseException ) e ).body : e.getMessage();
+                log.warn( "insert {} into {} failed ({}), retry {}/{} in {}ms", token, table, reason, attempt + 1, retries, delay );
+                ClickhouseMetrics.retry( table );
+                try {
+                    Thread.sleep( delay );
+                } catch( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw new ClickhouseException( ie );
+                }
+            }
+        }
     }
 
     @Override
@@ -159,25 +491,21 @@ public class DefaultClickhouseClient implements ClickhouseClient {
         if( !async ) waitMutation( where );
     }
 
-    @SuppressWarnings( "checkstyle:parameterAssignment" )
     private void waitMutation( String where ) {
+        var mutations = uncached().withParams( Map.of( "command", "DELETE WHERE " + where.replaceAll( "  +", " " ) ) );
         try {
-            where = StringUtils.replace( where, "'", "\\'" );
-            where = where.replaceAll( "  +", " " );
-
             var time = DateTimeUtils.currentTimeMillis();
             List<String> lines;
             do {
                 if( DateTimeUtils.currentTimeMillis() - time > timeout )
                     throw new ClickhouseException( new TimeoutException() );
-                lines = getLines( "SELECT is_done FROM system.mutations where is_done = 0 AND command = 'DELETE WHERE " + where + "'" );
+                lines = mutations.getLines( "SELECT is_done FROM system.mutations where is_done = 0 AND command = {command:String}" );
                 if( lines.isEmpty() ) return;
                 Thread.sleep( 500 );
             } while( true );
         } catch( InterruptedException e ) {
             throw new ClickhouseException( e );
         }
-
     }
 
     @Override
@@ -187,12 +515,12 @@ public class DefaultClickhouseClient implements ClickhouseClient {
 
     @Override
     public ClickhouseProcess putAsync( String table, DataFormat format, Collection<String> fields, long timeout ) {
-        return executeAsync( getSubstitute( table, PUT, v ->
+        return newProcess( new Query( getSubstitute( table, PUT, v ->
             switch( v ) {
                 case "FIELDS" -> fields.isEmpty() ? "" : Strings.join( ",", fields, "(", ")" );
                 case "FORMAT" -> format.name();
                 default -> null;
-            } ), true, timeout );
+            } ), false, true, Map.of(), table ), true, timeout );
     }
 
     @SneakyThrows
@@ -237,22 +565,132 @@ public class DefaultClickhouseClient implements ClickhouseClient {
 
     @Override
     public int get( String query, Consumer<String> consumer, boolean useDatabase, long timeout ) throws ClickhouseException {
+        return getTsv( query, row -> consumer.accept( row.line() ), useDatabase, timeout );
+    }
+
+    @Override
+    public int getTsv( String query, Consumer<TsvCursor> consumer, boolean useDatabase, long timeout ) throws ClickhouseException {
+        var cmd = getSubstitute( null, query, null );
+
+        log.trace( "execute {}", cmd );
+
+        try {
+            if( cached || singleFlight ) {
+                var normalized = ResultCache.normalize( cmd );
+                if( ResultCache.isCacheable( normalized ) ) {
+                    var key = ( useDatabase ? database : "" ) + "\n" + user + "\n" + settings( new Query( normalized, false ) ) + "\n" + normalized;
+                    if( !cached ) return readShared( key, cmd, consumer, useDatabase, timeout );
+
+                    var data = resultCache().get( key, normalized, () -> {
+                        var shared = inFlight.get( key, timeout, () -> fetch( cmd, useDatabase, timeout ) );
+                        return shared != null ? shared : fetch( cmd, useDatabase, timeout );
+                    } );
+                    return readTsv( new ByteArrayInputStream( data ), consumer );
+                }
+            }
+
+            try( var stream = execute( new Query( cmd, false ), useDatabase ? database : null, timeout ) ) {
+                return readTsv( stream.getInputStream(), consumer );
+            }
+        } catch( IOException e ) {
+            throw new ClickhouseException( e );
+        }
+    }
+
+    private int readTsv( InputStream in, Consumer<TsvCursor> consumer ) throws IOException {
+        try( var cursor = new TsvCursor( in, Charset.forName( charsetName ) ) ) {
+            int count = 0;
+            while( cursor.next() ) {
+                consumer.accept( cursor );
+                count++;
+            }
+            log.trace( "Finished executing GET with {} lines", count );
+
+            return count;
+        }
+    }
+
+    /**
+     * The first of concurrent identical reads streams the response to its consumer through a copy for the others,
+     * they send their own request if the copy outgrew {@link #singleFlightMaxBytes} or the first consumer failed.
+     */
+    private int readShared( String key, String cmd, Consumer<TsvCursor> consumer, boolean useDatabase, long timeout ) throws IOException {
+        var lines = new AtomicInteger( -1 );
+        var failure = new AtomicReference<RuntimeException>();
+        var data = inFlight.get( key, timeout, () -> {
+            var copy = new BoundedBuffer( singleFlightMaxBytes );
+            try( var stream = execute( new Query( cmd, false ), useDatabase ? database : null, timeout ) ) {
+                lines.set( readTsv( new TeeInputStream( stream.getInputStream(), copy ), row -> {
+                    try {
+                        consumer.accept( row );
+                    } catch( RuntimeException e ) {
+                        failure.set( e );
+                        throw e;
+                    }
+                } ) );
+                return copy.content();
+            } catch( IOException e ) {
+                throw new ClickhouseException( e );
+            } catch( RuntimeException e ) {
+                if( failure.get() != null ) return null;
+                throw e;
+            }
+        } );
+        if( failure.get() != null ) throw failure.get();
+        if( lines.get() >= 0 ) return lines.get();
+        if( data != null ) return readTsv( new ByteArrayInputStream( data ), consumer );
+
+        try( var stream = execute( new Query( cmd, false ), useDatabase ? database : null, timeout ) ) {
+            return readTsv( stream.getInputStream(), consumer );
+        }
+    }
+
+    private byte[] fetch( String cmd, boolean useDatabase, long timeout ) {
+        try( var stream = execute( new Query( cmd, false ), useDatabase ? database : null, timeout );
+             var in = stream.getInputStream() ) {
+            return in.readAllBytes();
+        } catch( IOException e ) {
+            throw new ClickhouseException( e );
+        }
+    }
+
+    @Override
+    public <T> Stream<T> stream( String query, Function<TsvCursor, T> mapper, boolean useDatabase, long timeout ) throws ClickhouseException {
         var cmd = getSubstitute( null, query, null );
 
+        log.trace( "stream {}", cmd );
+
+        var stream = execute( new Query( cmd, false ), useDatabase ? database : null, timeout );
+        try {
+            var lines = new TsvIterator<>( stream, new TsvCursor( stream.getInputStream(), Charset.forName( charsetName ) ), mapper );
+
+            return StreamSupport
+                .stream( Spliterators.spliteratorUnknownSize( lines, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+                .onClose( lines::close );
+        } catch( RuntimeException e ) {
+            stream.abort();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getRowBinary( String query, RowConsumer consumer, boolean useDatabase, long timeout ) throws ClickhouseException {
+        // a FORMAT of the caller's own would not be RowBinary
+        var cmd = StringUtils.stripEnd( TRAILING_FORMAT.matcher( getSubstitute( null, query, null ) ).replaceFirst( "" ).trim(), ";" )
+            + " FORMAT RowBinaryWithNamesAndTypes";
+
         log.trace( "execute {}", cmd );
 
         try( var stream = execute( new Query( cmd, false ),
             useDatabase ? database : null, timeout ) ) {
 
-            String line;
+            var cursor = new RowBinaryCursor( stream.getInputStream() );
             int count = 0;
-            try( BufferedReader br = new BufferedReader( new java.io.InputStreamReader( stream.getInputStream(), charsetName ) ) ) {
-                while( ( line = br.readLine() ) != null ) {
-                    consumer.accept( line );
-                    count++;
-                }
+            while( cursor.next() ) {
+                consumer.accept( cursor );
+                count++;
             }
-            log.trace( "Finished executing GET with {} lines", count );
+            log.trace( "Finished executing GET with {} rows", count );
 
             return count;
         } catch( IOException e ) {
@@ -262,29 +700,115 @@ public class DefaultClickhouseClient implements ClickhouseClient {
 
     @Override
     public Database getDatabase() {
-        return new Database( database, this, settings );
+        return new Database( database, uncached(), systemSettings );
+    }
+
+    /**
+     * metadata and polling reads must see the current state
+     */
+    private DefaultClickhouseClient uncached() {
+        return cached ? new DefaultClickhouseClient( this, database, user, overrides, statsListener, progressListener, false ) : this;
     }
 
     @Override
     public ClickhouseClient useDatabase( String database ) {
-        return new DefaultClickhouseClient( host, port, database, maxQuerySize, max_ast_elements,
-            max_expanded_ast_elements, charsetName, timeout, client );
+        return new DefaultClickhouseClient( this, database, user, overrides, statsListener, progressListener, cached );
     }
 
     @Override
     public ClickhouseClient withUser( String user ) {
-        return new DefaultClickhouseClient( host, port, database, maxQuerySize, max_ast_elements,
-            max_expanded_ast_elements, charsetName, timeout, client );
+        return new DefaultClickhouseClient( this, database, user, overrides, statsListener, progressListener, cached );
     }
 
-    private String getSubstitute( String table, String query, Function<String, String> ifElse ) {
-        return Strings.substitute( query, f ->
-            switch( f ) {
-                case "DATABASE" -> database;
-                case "TABLE" -> table;
-                case "PORT" -> port;
-                default -> ifElse != null ? ifElse.apply( f ) : null;
-            } );
+    @Override
+    public ClickhouseClient withSettings( Map<String, ?> settings ) {
+        var merged = new LinkedHashMap<String, Object>( overrides );
+        merged.putAll( settings );
+        return new DefaultClickhouseClient( this, database, user, merged, statsListener, progressListener, cached );
+    }
+
+    @Override
+    public ClickhouseClient withParams( Map<String, ?> params ) {
+        var merged = new LinkedHashMap<String, Object>( overrides );
+        params.forEach( ( name, value ) -> merged.put( "param_" + name, paramValue( value ) ) );
+        return new DefaultClickhouseClient( this, database, user, merged, statsListener, progressListener, cached );
+    }
+
+    @Override
+    public ClickhouseClient withResultCache() {
+        return new DefaultClickhouseClient( this, database, user, overrides, statsListener, progressListener, true );
+    }
+
+    @Override
+    public ClickhouseClient withStats( Consumer<QueryStats> stats ) {
+        return new DefaultClickhouseClient( this, database, user, overrides, stats, progressListener, cached );
+    }
+
+    @Override
+    public ClickhouseClient withProgress( Consumer<QueryStats> progress ) {
+        return new DefaultClickhouseClient( this, database, user, overrides, statsListener, progress, cached );
+    }
+
+    @Override
+    public ClickhouseClient withProfile( String profile ) {
+        var settings = profiles.get( profile );
+        if( settings == null ) throw new IllegalArgumentException( "unknown settings profile " + profile + ", known " + profiles.keySet() );
+        return withSettings( settings );
+    }
+
+    /**
+     * max_* fields, then {@code settings}, then the view's, then the query's own
+     */
+    private Map<String, String> settings( Query query ) {
+        var result = new LinkedHashMap<String, String>();
+        if( maxQuerySize > 0 ) result.put( "max_query_size", String.valueOf( maxQuerySize ) );
+        if( max_ast_elements > 0 ) result.put( "max_ast_elements", String.valueOf( max_ast_elements ) );
+        if( max_expanded_ast_elements > 0 )
+            result.put( "max_expanded_ast_elements", String.valueOf( max_expanded_ast_elements ) );
+        settings.forEach( ( name, value ) -> result.put( name, settingValue( value ) ) );
+        overrides.forEach( ( name, value ) -> result.put( name, settingValue( value ) ) );
+        result.putAll( query.settings );
+        return result;
+    }
+
+    private static String settingValue( Object value ) {
+        if( value instanceof Boolean ) return ( Boolean ) value ? "1" : "0";
+        return String.valueOf( value );
+    }
+
+    /**
+     * A query parameter value in the TSV escaped format, arrays as literals.
+     */
+    static String paramValue( Object value ) {
+        if( value instanceof Collection<?> || value instanceof Boolean ) return paramLiteral( value );
+        return StringUtils.replaceEach( String.valueOf( value ), new String[] { "\\", "\t", "\n" }, new String[] { "\\\\", "\\t", "\\n" } );
+    }
+
+    private static String paramLiteral( Object value ) {
+        if( value instanceof Collection<?> )
+            return ( ( Collection<?> ) value ).stream().map( DefaultClickhouseClient::paramLiteral ).collect( joining( ",", "[", "]" ) );
+        if( value instanceof Boolean ) return ( Boolean ) value ? "1" : "0";
+        if( value instanceof Number ) return value.toString();
+        return "'" + StringUtils.replaceEach( paramValue( value ), new String[] { "'" }, new String[] { "\\'" } ) + "'";
+    }
+
+    String getSubstitute( String table, String query, Function<String, String> ifElse ) {
+        if( !query.contains( "${" ) ) return query;
+
+        return Strings.substitute( query, f -> resolve( table, f, ifElse ) );
+    }
+
+    String getSubstitute( String table, QueryTemplate query, Function<String, String> ifElse ) {
+        return query.render( f -> resolve( table, f, ifElse ) );
+    }
+
+    private Object resolve( String table, String field, Function<String, String> ifElse ) {
+        return switch( field ) {
+            case "DATABASE" -> database;
+            case "TABLE" -> table;
+            case "PORT" -> port;
+            default -> ifElse != null ? ifElse.apply( field ) : null;
+        };
     }
 
     @Override
@@ -305,10 +829,67 @@ public class DefaultClickhouseClient implements ClickhouseClient {
     public static class Query {
         public final String query;
         public final boolean commandLine;
+        public final boolean insert;
+        /**
+         * anything but a SELECT, WITH, SHOW, DESCRIBE or EXISTS; routed to the write replicas
+         */
+        public final boolean write;
+        /**
+         * extra url parameters: settings, query_id
+         */
+        public final Map<String, String> settings;
+        /**
+         * the insert target, for metrics
+         */
+        public final String table;
 
         public Query( String query, boolean commandLine ) {
+            this( query, commandLine, false );
+        }
+
+        public Query( String query, boolean commandLine, boolean insert ) {
+            this( query, commandLine, insert, Map.of() );
+        }
+
+        public Query( String query, boolean commandLine, boolean insert, Map<String, String> settings ) {
+            this( query, commandLine, insert, settings, null );
+        }
+
+        public Query( String query, boolean commandLine, boolean insert, Map<String, String> settings, String table ) {
             this.query = query;
             this.commandLine = commandLine;
+            this.insert = insert;
+            this.write = insert || !isRead( query );
+            this.settings = settings;
+            this.table = table;
+        }
+
+        static boolean isRead( String query ) {
+            var i = 0;
+            while( i < query.length() ) {
+                var c = query.charAt( i );
+                if( Character.isWhitespace( c ) || c == '(' ) i++;
+                else if( query.startsWith( "--", i ) ) {
+                    var end = query.indexOf( '\n', i );
+                    i = end < 0 ? query.length() : end + 1;
+                } else if( query.startsWith( "/*", i ) ) {
+                    var end = query.indexOf( "*/", i + 2 );
+                    i = end < 0 ? query.length() : end + 2;
+                } else break;
+            }
+            var end = i;
+            while( end < query.length() && Character.isLetter( query.charAt( end ) ) ) end++;
+            switch( query.substring( i, end ).toUpperCase() ) {
+                case "SELECT":
+                case "WITH":
+                case "SHOW":
+                case "DESCRIBE":
+                case "DESC":
+                case "EXISTS":
+                    return true;
+                default:
+                    return false;
+            }
         }
     }
 
@@ -336,57 +917,251 @@ public class DefaultClickhouseClient implements ClickhouseClient {
         }
     }
 
+    /**
+     * Keeps what is written to it until more than {@code limit} bytes were.
+     */
+    private static final class BoundedBuffer extends ByteArrayOutputStream {
+        private final long limit;
+        private boolean overflow;
+
+        private BoundedBuffer( long limit ) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write( int b ) {
+            write( new byte[] { ( byte ) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            if( overflow ) return;
+            if( count + len > limit ) {
+                overflow = true;
+                buf = new byte[0];
+                count = 0;
+                return;
+            }
+            super.write( b, off, len );
+        }
+
+        /**
+         * @return null once the limit was passed
+         */
+        private byte[] content() {
+            return overflow ? null : toByteArray();
+        }
+    }
+
+    private static class TsvIterator<T> implements Iterator<T> {
+        private final ClickhouseStream stream;
+        private final TsvCursor cursor;
+        private final Function<TsvCursor, T> mapper;
+        private Boolean hasNext;
+
+        private TsvIterator( ClickhouseStream stream, TsvCursor cursor, Function<TsvCursor, T> mapper ) {
+            this.stream = stream;
+            this.cursor = cursor;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( hasNext == null )
+                try {
+                    hasNext = cursor.next();
+                } catch( IOException e ) {
+                    throw new ClickhouseException( e );
+                }
+            return hasNext;
+        }
+
+        @Override
+        public T next() {
+            if( !hasNext() ) throw new NoSuchElementException();
+            hasNext = null;
+            return mapper.apply( cursor );
+        }
+
+        private void close() {
+            var completed = Boolean.FALSE.equals( hasNext );
+            cursor.close();
+            if( completed ) stream.close();
+            else stream.abort();
+        }
+    }
+
+    private void kill( Replicas.Replica replica, String queryId ) {
+        CompletableFuture.runAsync( () -> {
+            var sql = KILL_QUERY.render( f -> "QUERY_ID".equals( f ) ? StringUtils.replace( queryId, "'", "\\'" ) : null );
+            try( var stream = new ClickhouseProcessHttp( new Query( sql, false ), null, user, connectTimeout, replica ).toStream();
+                 var ignored = stream.getInputStream() ) {
+                log.debug( "killed query {} on {}", queryId, replica );
+            } catch( Exception e ) {
+                log.debug( "cannot kill query {} on {}: {}", queryId, replica, e.getMessage() );
+            }
+        } );
+    }
+
     public class ClickhouseProcessHttp implements ClickhouseProcess {
         private final Query query;
         private final String database;
         private final String user;
         private final long timeout;
+        /**
+         * a control request (KILL QUERY) to this host: no deadline, not killed itself
+         */
+        private final Replicas.Replica target;
 
         public ClickhouseProcessHttp( Query query, boolean useDatabase, String user, long timeout ) {
             this( query, useDatabase ? DefaultClickhouseClient.this.database : null, user, timeout );
         }
 
         public ClickhouseProcessHttp( Query query, String database, String user, long timeout ) {
+            this( query, database, user, timeout, null );
+        }
+
+        private ClickhouseProcessHttp( Query query, String database, String user, long timeout, Replicas.Replica target ) {
             this.query = query;
             this.database = database;
             this.user = user;
             this.timeout = timeout;
+            this.target = target;
         }
 
         @Override
         public ClickhouseStream toStream() throws ClickhouseException {
+            var replica = target != null ? replicas().acquire( target ) : replicas().acquire( query.write );
             try {
-                var uriBuilder = new URIBuilder( "http://" + host + ":" + port );
+                var settings = settings( query );
+                var queryId = settings.computeIfAbsent( "query_id", k -> UUID.randomUUID().toString() );
+                if( timeout > 0 && !query.insert )
+                    settings.putIfAbsent( "max_execution_time", String.valueOf( ( timeout + 999 ) / 1000 ) );
+                if( progressListener != null && target == null ) {
+                    settings.putIfAbsent( "send_progress_in_http_headers", "1" );
+                    settings.putIfAbsent( "http_headers_progress_interval_ms", String.valueOf( progressInterval ) );
+                }
+
+                var uriBuilder = new URIBuilder( "http://" + replica.host + ":" + replica.port );
                 if( this.database != null ) uriBuilder.addParameter( "database", this.database );
-                if( maxQuerySize > 0 ) uriBuilder.addParameter( "max_query_size", String.valueOf( maxQuerySize ) );
-                if( max_ast_elements > 0 )
-                    uriBuilder.addParameter( "max_ast_elements", String.valueOf( max_ast_elements ) );
-                if( max_expanded_ast_elements > 0 )
-                    uriBuilder.addParameter( "max_expanded_ast_elements", String.valueOf( max_expanded_ast_elements ) );
                 if( user != null ) uriBuilder.addParameter( "user", user );
+                settings.forEach( uriBuilder::addParameter );
+                if( compression != HttpCompression.NONE && !query.insert )
+                    uriBuilder.addParameter( "enable_http_compression", "1" );
+                if( isNativeCompressed() ) {
+                    // the whole body is decompressed as blocks, so the statement travels in the url
+                    uriBuilder.addParameter( "query", query.query );
+                    uriBuilder.addParameter( "decompress", "1" );
+                }
                 var uri = uriBuilder.build();
 
                 log.trace( "clickhouse uri = {}, chunk size = {}, connection timeout = {}",
                     uri, FileUtils.byteCountToDisplaySize( chunkSize ), Dates.durationToString( timeout ) );
 
-                var con = uri.toURL().openConnection();
-                var http = ( HttpURLConnection ) con;
-                http.setRequestMethod( "POST" );
-                http.setDoOutput( true );
-                http.setChunkedStreamingMode( chunkSize );
-                http.connect();
-                http.setConnectTimeout( ( int ) timeout );
+                var headers = new LinkedHashMap<String, String>();
+                if( compression != HttpCompression.NONE )
+                    headers.put( query.insert ? "Content-Encoding" : "Accept-Encoding", compression.encoding );
 
-                var os = http.getOutputStream();
+                var stream = switch( transport ) {
+                    case URL_CONNECTION -> openUrlConnection( uri, headers );
+                    case HTTP_CLIENT -> openHttpClient( uri, headers );
+                    case POOLED -> openPooled( uri, headers );
+                };
+                if( target != null ) return stream.onComplete( replica::release );
 
-                os.write( query.query.getBytes() );
-                os.write( '\n' );
+                var start = ClickhouseMetrics.started();
 
-                return new ClickhouseStream( os, http );
+                // inserts are bounded by the connect and first byte timeouts only, a large one may take any time
+                var deadline = timeout > 0 && !query.insert ? DEADLINES.schedule( () -> {
+                    log.warn( "query {} on {} passed its deadline of {}", queryId, replica, Dates.durationToString( timeout ) );
+                    stream.abort( new TimeoutException( "query " + queryId + " passed its deadline of " + Dates.durationToString( timeout ) ) );
+                }, timeout, MILLISECONDS ) : null;
+                if( killOnAbort ) stream.onAbort( () -> kill( replica, queryId ) );
+                if( progressListener != null ) stream.onProgress( progressListener );
 
-            } catch( URISyntaxException | IOException e ) {
+                return stream.onComplete( e -> {
+                    if( deadline != null ) deadline.cancel( false );
+                    replica.release( e );
+                    ClickhouseMetrics.completed( start, query.insert, query.table, stream.getStats(), e );
+                    var cache = resultCache.get();
+                    if( cache != null ) cache.written( query.insert ? query.table : null, query.query );
+                    if( e == null && statsListener != null && stream.getStats() != null ) statsListener.accept( stream.getStats() );
+                } );
+            } catch( URISyntaxException | IOException | RuntimeException e ) {
+                replica.release( e );
+                if( target == null ) ClickhouseMetrics.error( e );
+                if( e instanceof RuntimeException ) throw ( RuntimeException ) e;
                 throw new ClickhouseException( e );
             }
         }
+
+        private ClickhouseStream openUrlConnection( URI uri, Map<String, String> headers ) throws IOException {
+            var con = uri.toURL().openConnection();
+            var http = ( HttpURLConnection ) con;
+            http.setRequestMethod( "POST" );
+            http.setDoOutput( true );
+            http.setChunkedStreamingMode( chunkSize );
+            headers.forEach( http::setRequestProperty );
+            http.setConnectTimeout( ( int ) Math.min( connectTimeout, Integer.MAX_VALUE ) );
+            http.setReadTimeout( ( int ) Math.min( readTimeout(), Integer.MAX_VALUE ) );
+            http.connect();
+
+            var os = requestBody( http.getOutputStream() );
+
+            return new ClickhouseStream( os, http );
+        }
+
+        private ClickhouseStream openHttpClient( URI uri, Map<String, String> headers ) throws IOException {
+            var body = new ClickhouseBodyPublisher( chunkSize );
+            var builder = HttpRequest.newBuilder( uri )
+                .version( HttpClient.Version.HTTP_1_1 )
+                .POST( body );
+            // counted from the start of the request, so it would cut a long insert body short
+            if( !query.insert && readTimeout() > 0 ) builder.timeout( Duration.ofMillis( readTimeout() ) );
+            headers.forEach( builder::header );
+
+            var response = client.sendAsync( builder.build(), HttpResponse.BodyHandlers.ofInputStream() );
+            response.whenComplete( ( r, e ) -> {
+                if( e != null ) body.fail( e );
+            } );
+
+            var os = requestBody( body );
+
+            return new ClickhouseStream( os, new ClickhouseStream.HttpClientConnection( response, readTimeout() ) );
+        }
+
+        private ClickhouseStream openPooled( URI uri, Map<String, String> headers ) throws IOException {
+            var target = ( uri.getRawPath().isEmpty() ? "/" : uri.getRawPath() )
+                + ( uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "" );
+            var exchange = PooledHttpExchange.post( pool(), uri.getHost(), uri.getPort(), target, headers, chunkSize, readTimeout(), !query.write );
+
+            try {
+                var os = requestBody( exchange.getOutputStream() );
+
+                return new ClickhouseStream( os, exchange );
+            } catch( IOException e ) {
+                exchange.abort();
+                throw e;
+            }
+        }
+
+        private long readTimeout() {
+            return firstByteTimeout > 0 ? firstByteTimeout : Math.max( timeout, 0 );
+        }
+
+        private boolean isNativeCompressed() {
+            return query.insert && nativeCompression != NativeCompression.NONE;
+        }
+
+        private OutputStream requestBody( OutputStream os ) throws IOException {
+            var body = query.insert ? compression.compress( os ) : os;
+
+            if( isNativeCompressed() ) return nativeCompression.compress( body, chunkSize );
+
+            body.write( query.query.getBytes() );
+            body.write( '\n' );
+
+            return body;
+        }
     }
 }
@@ -28,8 +28,6 @@ import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 
 import static java.util.Collections.emptyMap;
@@ -38,11 +36,8 @@ import static java.util.Collections.emptyMap;
 @EqualsAndHashCode( callSuper = true )
 @Slf4j
 public class Dictionary extends AbstractTable {
-    private static final String DICTIONARY_EXISTS_QUERY =
-        "SELECT name FROM system.tables WHERE database = '${DATABASE}' AND name = '${TABLE}'";
-
-    private static final String DROP_DICTIONARY_SQL =
-        "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}";
+    private static final QueryTemplate DROP_DICTIONARY_SQL = QueryTemplate.parse(
+        "DROP TABLE IF EXISTS ${DATABASE}.${TABLE}" );
 
 
     public Dictionary( Database database, String name ) {
@@ -50,20 +45,6 @@ public class Dictionary extends AbstractTable {
     }
 
 
-    @Override
-    public boolean exists() throws ClickhouseException {
-        try {
-            return ( Boolean ) cache.get( "exists", () -> {
-                var sql = buildQuery( DICTIONARY_EXISTS_QUERY, emptyMap() );
-                log.trace( "sql = {}", sql );
-                final List<String> lines = database.client.getLines( sql );
-                return !lines.isEmpty();
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
-    }
-
     public void upgrade( Supplier<String> init ) throws ClickhouseException {
         if( !exists() ) {
             log.debug( "Table {}.{} doesn't exist", database.getName(), name );
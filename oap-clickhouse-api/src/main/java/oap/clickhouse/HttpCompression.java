@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public enum HttpCompression {
+    NONE( null ) {
+        @Override
+        public OutputStream compress( OutputStream out ) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress( InputStream in ) {
+            return in;
+        }
+    },
+    GZIP( "gzip" ) {
+        @Override
+        public OutputStream compress( OutputStream out ) throws IOException {
+            return new GZIPOutputStream( out, BUFFER_SIZE );
+        }
+
+        @Override
+        public InputStream decompress( InputStream in ) throws IOException {
+            return new GZIPInputStream( in, BUFFER_SIZE );
+        }
+    },
+    ZSTD( "zstd" ) {
+        @Override
+        public OutputStream compress( OutputStream out ) throws IOException {
+            return new ZstdOutputStream( out );
+        }
+
+        @Override
+        public InputStream decompress( InputStream in ) throws IOException {
+            return new ZstdInputStream( in );
+        }
+    },
+    LZ4( "lz4" ) {
+        @Override
+        public OutputStream compress( OutputStream out ) throws IOException {
+            return new LZ4FrameOutputStream( out );
+        }
+
+        @Override
+        public InputStream decompress( InputStream in ) throws IOException {
+            return new LZ4FrameInputStream( in );
+        }
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public final String encoding;
+
+    HttpCompression( String encoding ) {
+        this.encoding = encoding;
+    }
+
+    public static HttpCompression ofEncoding( String contentEncoding ) {
+        if( contentEncoding == null || contentEncoding.isBlank() ) return NONE;
+
+        for( var compression : values() )
+            if( contentEncoding.trim().equalsIgnoreCase( compression.encoding ) ) return compression;
+
+        throw new ClickhouseException( "unsupported Content-Encoding: " + contentEncoding, 0, null );
+    }
+
+    public abstract OutputStream compress( OutputStream out ) throws IOException;
+
+    public abstract InputStream decompress( InputStream in ) throws IOException;
+}
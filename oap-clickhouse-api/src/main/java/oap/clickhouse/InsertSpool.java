@@ -0,0 +1,459 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static oap.util.Dates.s;
+
+/**
+ * A write-ahead spool of encoded insert batches on local disk. Batches are appended to memory-mapped segment files,
+ * one directory per table, and a background replayer sends each table's segments in order, one put() per segment,
+ * retrying every {@code replayInterval} ms while ClickHouse is unavailable. Replayed segments are kept for reuse up to
+ * {@code maxFreeSegments}. Segments left on disk are replayed after a restart.
+ * <p>
+ * Each batch is stored and sent with its own deduplication token, the one of the insert that failed, so neither a batch
+ * that did reach ClickHouse nor a segment replayed again after a crash is inserted twice.
+ * <p>
+ * A batch ClickHouse rejects for good (a non-retryable error answered by the server, e.g. a parse error) is appended to
+ * {@code .dead/<table>} and counted in {@link #getDroppedRows()}, so the batches after it are still replayed.
+ * <p>
+ * Segment: {@code magic(4) version(4)} then records {@code length(4) rows(4) crc32(4) tokenLength(4) token data},
+ * terminated by a zero length. The length and crc32 cover token and data.
+ */
+@Slf4j
+public class InsertSpool {
+    static final int MAGIC = 0x43485350;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 16;
+
+    public final ClickhouseClient client;
+    public final Path directory;
+    public DataFormat format = DataFormat.TabSeparated;
+    public int segmentSize = 64 * 1024 * 1024;
+    public int maxSegments = 256;
+    public int maxFreeSegments = 4;
+    public long replayInterval = s( 1 );
+    public boolean force = false;
+
+    private final ConcurrentHashMap<String, TableSpool> tables = new ConcurrentHashMap<>();
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+    private final AtomicInteger segments = new AtomicInteger();
+    private final AtomicInteger freeFiles = new AtomicInteger();
+    private final AtomicLong replayedRows = new AtomicLong();
+    private final AtomicLong droppedRows = new AtomicLong();
+    private ScheduledExecutorService replayer;
+
+    public InsertSpool( ClickhouseClient client, Path directory ) {
+        this.client = client;
+        this.directory = directory;
+    }
+
+    public void start() {
+        log.info( "directory: {}, format: {}, segmentSize: {}, maxSegments: {}, replayInterval: {}ms",
+            directory, format, FileUtils.byteCountToDisplaySize( segmentSize ), maxSegments, replayInterval );
+
+        try {
+            recover();
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+
+        replayer = Executors.newSingleThreadScheduledExecutor( r -> {
+            var thread = new Thread( r, "clickhouse-spool-replayer" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        replayer.scheduleWithFixedDelay( this::replay, replayInterval, replayInterval, MILLISECONDS );
+    }
+
+    /**
+     * Stops replaying; whatever is not sent yet stays on disk.
+     */
+    public void stop() {
+        if( replayer == null ) return;
+
+        replayer.shutdown();
+        try {
+            if( !replayer.awaitTermination( client.getTimeout() > 0 ? client.getTimeout() : Long.MAX_VALUE, MILLISECONDS ) )
+                replayer.shutdownNow();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        for( var table : tables.values() ) table.force();
+    }
+
+    /**
+     * @param data  complete rows in {@code format}
+     * @param token deduplication token the batch is replayed with
+     * @throws ClickhouseException when {@code maxSegments} are in use or the batch does not fit a segment
+     */
+    public void append( String table, byte[] data, int offset, int length, int rows, String token ) {
+        var tokenBytes = token.getBytes( UTF_8 );
+        if( tokenBytes.length + length + RECORD_HEADER_SIZE + 4 > segmentSize - HEADER_SIZE )
+            throw new ClickhouseException( "batch of " + length + " bytes does not fit a segment of " + segmentSize, 0, null );
+
+        try {
+            tables.computeIfAbsent( table, TableSpool::new ).append( tokenBytes, data, offset, length, rows );
+        } catch( IOException e ) {
+            throw new ClickhouseException( e );
+        }
+    }
+
+    public void append( String table, byte[] data, int offset, int length, int rows ) {
+        append( table, data, offset, length, rows, UUID.randomUUID().toString() );
+    }
+
+    /**
+     * @param row exactly one complete row in {@code format}
+     */
+    public void append( String table, byte[] row ) {
+        append( table, row, 0, row.length, 1 );
+    }
+
+    /**
+     * Sends every table's pending segments, oldest first, stopping at a table's first failure.
+     */
+    public void replay() {
+        for( var table : tables.values() ) {
+            try {
+                table.replay();
+            } catch( Exception e ) {
+                log.warn( "replay of {} stopped: {}", table.name, e.getMessage() );
+                log.trace( e.getMessage(), e );
+            }
+        }
+    }
+
+    public int getSegments() {
+        return segments.get();
+    }
+
+    public long getPendingBytes() {
+        return tables.values().stream().mapToLong( TableSpool::pendingBytes ).sum();
+    }
+
+    public long getReplayedRows() {
+        return replayedRows.get();
+    }
+
+    /**
+     * @return rows ClickHouse rejected for good, moved to {@code .dead}
+     */
+    public long getDroppedRows() {
+        return droppedRows.get();
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories( directory.resolve( ".free" ) );
+        Files.createDirectories( directory.resolve( ".dead" ) );
+        try( var files = Files.list( directory.resolve( ".free" ) ) ) {
+            for( var file : files.collect( Collectors.toList() ) ) Files.delete( file );
+        }
+
+        try( var dirs = Files.list( directory ) ) {
+            for( var dir : dirs.filter( Files::isDirectory ).collect( Collectors.toList() ) ) {
+                var name = dir.getFileName().toString();
+                if( name.equals( ".free" ) || name.equals( ".dead" ) ) continue;
+
+                var table = tables.computeIfAbsent( name, TableSpool::new );
+                try( var files = Files.list( dir ) ) {
+                    for( var file : files.sorted().collect( Collectors.toList() ) ) table.recover( file );
+                }
+            }
+        }
+    }
+
+    private Segment newSegment( Path file ) throws IOException {
+        if( segments.incrementAndGet() > maxSegments ) {
+            segments.decrementAndGet();
+            throw new ClickhouseException( "spool is full: " + maxSegments + " segments in " + directory, 0, null );
+        }
+
+        try {
+            Segment segment;
+            synchronized( free ) {
+                segment = free.pollFirst();
+            }
+            if( segment != null ) {
+                Files.move( segment.file, file );
+                segment.file = file;
+            } else segment = Segment.map( file, segmentSize );
+
+            segment.reset();
+            return segment;
+        } catch( IOException | RuntimeException e ) {
+            segments.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return ClickHouse answered with an error that replaying the same batch will not fix
+     */
+    private static boolean rejected( Exception e ) {
+        for( Throwable t = e; t != null; t = t.getCause() )
+            if( t instanceof ClickhouseException && ( ( ClickhouseException ) t ).code > 0 )
+                return !ClickhouseException.isRetryable( e );
+        return false;
+    }
+
+    private void recycle( Segment segment ) throws IOException {
+        segments.decrementAndGet();
+        synchronized( free ) {
+            if( free.size() < maxFreeSegments && segment.buffer.capacity() == segmentSize ) {
+                var file = directory.resolve( ".free" ).resolve( String.valueOf( freeFiles.incrementAndGet() ) );
+                Files.move( segment.file, file );
+                segment.file = file;
+                free.addLast( segment );
+                return;
+            }
+        }
+        Files.delete( segment.file );
+    }
+
+    private final class TableSpool {
+        final String name;
+        final Path dir;
+        final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+        Segment current;
+        long sequence = 0;
+
+        TableSpool( String name ) {
+            this.name = name;
+            this.dir = directory.resolve( name );
+        }
+
+        synchronized void append( byte[] token, byte[] data, int offset, int length, int rows ) throws IOException {
+            if( current != null && !current.fits( token.length + length ) ) seal();
+            if( current == null ) {
+                Files.createDirectories( dir );
+                current = newSegment( dir.resolve( String.format( "%020d", ++sequence ) ) );
+            }
+            current.append( token, data, offset, length, rows );
+            if( force ) current.buffer.force();
+        }
+
+        synchronized void recover( Path file ) throws IOException {
+            var name = file.getFileName().toString();
+            if( !StringUtils.isNumeric( name ) ) {
+                log.warn( "skipping {}, not a segment", file );
+                return;
+            }
+            sequence = Math.max( sequence, Long.parseLong( name ) );
+            var segment = Segment.open( file );
+            if( segment == null || segment.rows == 0 ) {
+                log.warn( "dropping empty or foreign segment {}", file );
+                Files.delete( file );
+                return;
+            }
+            segments.incrementAndGet();
+            sealed.addLast( segment );
+            log.debug( "recovered {} rows ({}) for {}", segment.rows, FileUtils.byteCountToDisplaySize( segment.position ), name );
+        }
+
+        synchronized void seal() {
+            if( current == null || current.rows == 0 ) return;
+            current.buffer.force();
+            sealed.addLast( current );
+            current = null;
+        }
+
+        synchronized Segment next() {
+            if( sealed.isEmpty() ) seal();
+            return sealed.peekFirst();
+        }
+
+        synchronized void remove( Segment segment ) {
+            sealed.remove( segment );
+        }
+
+        synchronized long pendingBytes() {
+            return sealed.stream().mapToLong( s -> s.position ).sum() + ( current != null ? current.position : 0 );
+        }
+
+        synchronized void force() {
+            if( current != null ) current.buffer.force();
+        }
+
+        void replay() throws IOException {
+            Segment next;
+            while( ( next = next() ) != null ) {
+                var segment = next;
+                while( segment.replayed < segment.position ) {
+                    var record = segment.replayed;
+                    var rows = segment.buffer.getInt( record + 4 );
+                    try {
+                        client.insert( name, format, List.of(), segment.token( record ), out -> segment.writeTo( record, out ), client.getTimeout() );
+                        replayedRows.addAndGet( rows );
+                    } catch( ClickhouseException e ) {
+                        if( !rejected( e ) ) throw e;
+                        log.error( "{}: {} rows rejected, moved to .dead: {}", name, rows, e.getMessage() );
+                        try( var out = Files.newOutputStream( directory.resolve( ".dead" ).resolve( name ), CREATE, APPEND ) ) {
+                            segment.writeTo( record, out );
+                        }
+                        droppedRows.addAndGet( rows );
+                    }
+                    segment.replayed = segment.next( record );
+                }
+                log.trace( "replayed {} rows into {}", segment.rows, name );
+
+                remove( segment );
+                recycle( segment );
+            }
+        }
+    }
+
+    static final class Segment {
+        final MappedByteBuffer buffer;
+        Path file;
+        int position;
+        int rows;
+        /**
+         * start of the first record not sent yet
+         */
+        int replayed = HEADER_SIZE;
+
+        private Segment( Path file, MappedByteBuffer buffer ) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment map( Path file, int size ) throws IOException {
+            try( var channel = FileChannel.open( file, CREATE, READ, WRITE ) ) {
+                return new Segment( file, channel.map( FileChannel.MapMode.READ_WRITE, 0, size ) );
+            }
+        }
+
+        /**
+         * @return the segment with its valid records, or null if it is not a segment
+         */
+        static Segment open( Path file ) throws IOException {
+            var size = Files.size( file );
+            if( size < HEADER_SIZE + 4 ) return null;
+
+            var segment = map( file, ( int ) size );
+            var buffer = segment.buffer;
+            if( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION ) return null;
+
+            segment.position = HEADER_SIZE;
+            segment.replayed = HEADER_SIZE;
+            var crc = new CRC32();
+            while( segment.position + RECORD_HEADER_SIZE <= buffer.capacity() ) {
+                int length = buffer.getInt( segment.position );
+                int end = segment.position + RECORD_HEADER_SIZE + length;
+                int tokenLength = buffer.getInt( segment.position + 12 );
+                if( length <= 0 || end > buffer.capacity() || tokenLength < 0 || tokenLength > length ) break;
+
+                crc.reset();
+                crc.update( buffer.duplicate().position( segment.position + RECORD_HEADER_SIZE ).limit( end ) );
+                if( ( int ) crc.getValue() != buffer.getInt( segment.position + 8 ) ) {
+                    log.warn( "{}: torn record at {}, dropping the rest", file, segment.position );
+                    break;
+                }
+                segment.rows += buffer.getInt( segment.position + 4 );
+                segment.position = end;
+            }
+            return segment;
+        }
+
+        void reset() {
+            buffer.putInt( 0, MAGIC );
+            buffer.putInt( 4, VERSION );
+            buffer.putInt( HEADER_SIZE, 0 );
+            position = HEADER_SIZE;
+            replayed = HEADER_SIZE;
+            rows = 0;
+        }
+
+        String token( int record ) {
+            var token = new byte[buffer.getInt( record + 12 )];
+            buffer.get( record + RECORD_HEADER_SIZE, token );
+            return new String( token, UTF_8 );
+        }
+
+        int next( int record ) {
+            return record + RECORD_HEADER_SIZE + buffer.getInt( record );
+        }
+
+        boolean fits( int length ) {
+            return position + RECORD_HEADER_SIZE + length + 4 <= buffer.capacity();
+        }
+
+        void append( byte[] token, byte[] data, int offset, int length, int rows ) {
+            var crc = new CRC32();
+            crc.update( token );
+            crc.update( data, offset, length );
+
+            buffer.put( position + RECORD_HEADER_SIZE, token );
+            buffer.put( position + RECORD_HEADER_SIZE + token.length, data, offset, length );
+            buffer.putInt( position + 4, rows );
+            buffer.putInt( position + 8, ( int ) crc.getValue() );
+            buffer.putInt( position + 12, token.length );
+            int end = position + RECORD_HEADER_SIZE + token.length + length;
+            if( end + 4 <= buffer.capacity() ) buffer.putInt( end, 0 );
+            buffer.putInt( position, token.length + length );
+
+            position = end;
+            this.rows += rows;
+        }
+
+        void writeTo( int record, OutputStream out ) throws IOException {
+            var chunk = new byte[64 * 1024];
+            var data = buffer.duplicate().position( record + RECORD_HEADER_SIZE + buffer.getInt( record + 12 ) ).limit( next( record ) );
+            while( data.hasRemaining() ) {
+                int n = Math.min( chunk.length, data.remaining() );
+                data.get( chunk, 0, n );
+                out.write( chunk, 0, n );
+            }
+        }
+    }
+}
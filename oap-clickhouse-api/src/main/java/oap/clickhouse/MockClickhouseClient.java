@@ -30,13 +30,19 @@ import lombok.ToString;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang3.NotImplementedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
 
 public class MockClickhouseClient implements ClickhouseClient {
@@ -126,6 +132,30 @@ public class MockClickhouseClient implements ClickhouseClient {
         return getLines.size();
     }
 
+    @Override
+    public int getTsv( String query, Consumer<TsvCursor> row, boolean useDatabase, long timeout ) throws ClickhouseException {
+        try( var cursor = new TsvCursor( new ByteArrayInputStream( String.join( "\n", getLines ).getBytes( UTF_8 ) ) ) ) {
+            while( cursor.next() ) row.accept( cursor );
+        } catch( IOException e ) {
+            throw new ClickhouseException( e );
+        }
+
+        return getLines.size();
+    }
+
+    @Override
+    public <T> Stream<T> stream( String query, Function<TsvCursor, T> mapper, boolean useDatabase, long timeout ) throws ClickhouseException {
+        var result = new ArrayList<T>();
+        getTsv( query, row -> result.add( mapper.apply( row ) ), useDatabase, timeout );
+
+        return result.stream();
+    }
+
+    @Override
+    public int getRowBinary( String query, RowConsumer row, boolean useDatabase, long timeout ) throws ClickhouseException {
+        return 0;
+    }
+
     @Override
     public Database getDatabase() {
         return new Database( database, this, new SystemSettings( this ) );
@@ -141,6 +171,36 @@ public class MockClickhouseClient implements ClickhouseClient {
         return this;
     }
 
+    @Override
+    public ClickhouseClient withSettings( Map<String, ?> settings ) {
+        return this;
+    }
+
+    @Override
+    public ClickhouseClient withParams( Map<String, ?> params ) {
+        return this;
+    }
+
+    @Override
+    public ClickhouseClient withResultCache() {
+        return this;
+    }
+
+    @Override
+    public ClickhouseClient withProfile( String profile ) {
+        return this;
+    }
+
+    @Override
+    public ClickhouseClient withStats( Consumer<QueryStats> stats ) {
+        return this;
+    }
+
+    @Override
+    public ClickhouseClient withProgress( Consumer<QueryStats> progress ) {
+        return this;
+    }
+
     @ToString
     @EqualsAndHashCode
     @RequiredArgsConstructor
@@ -0,0 +1,322 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Collects rows column by column in primitive arrays and sends them as {@link DataFormat#Native} blocks of up to
+ * {@code blockRows} rows. Values are written in column order, the same way as with {@link RowBinaryWriter}, and every
+ * row ends with {@link #endRow()}. LowCardinality columns are sent as their inner type, which the server converts.
+ * <p>
+ * Not thread safe.
+ */
+@Slf4j
+public class NativeBatchWriter implements Closeable {
+    public static final int DEFAULT_BLOCK_ROWS = 64 * 1024;
+
+    public final List<ConfigField> fields;
+    private final ColumnBuffer[] columns;
+    private final BinaryOutput out;
+    private final int blockRows;
+    private int column = 0;
+    private int arrayRemaining = 0;
+    private int rows = 0;
+    private long totalRows = 0;
+
+    public NativeBatchWriter( List<ConfigField> fields, OutputStream out ) {
+        this( fields, out, DEFAULT_BLOCK_ROWS );
+    }
+
+    public NativeBatchWriter( List<ConfigField> fields, OutputStream out, int blockRows ) {
+        this.fields = fields.stream().filter( f -> f.materialized.isEmpty() ).collect( toList() );
+        this.columns = this.fields.stream().map( f -> new ColumnBuffer( new BinaryColumn( f ) ) ).toArray( ColumnBuffer[]::new );
+        this.out = new BinaryOutput( out, RowBinaryWriter.DEFAULT_BUFFER_SIZE );
+        this.blockRows = blockRows;
+    }
+
+    public long rows() {
+        return totalRows;
+    }
+
+    public NativeBatchWriter writeBoolean( boolean value ) {
+        return writeLong( value ? 1 : 0 );
+    }
+
+    public NativeBatchWriter writeInt( int value ) {
+        return writeLong( value );
+    }
+
+    /**
+     * Integer columns of any width, enums (by external id) and Float64.
+     */
+    public NativeBatchWriter writeLong( long value ) {
+        var c = current();
+        switch( c.column.encoder ) {
+            case UINT8, INT16, INT32, INT64 -> c.addLong( value );
+            case FLOAT64 -> c.addDouble( value );
+            default -> throw unexpected( c, "long" );
+        }
+        return next();
+    }
+
+    public NativeBatchWriter writeDouble( double value ) {
+        var c = current();
+        if( c.column.encoder != BinaryColumn.Encoder.FLOAT64 ) throw unexpected( c, "double" );
+        c.addDouble( value );
+        return next();
+    }
+
+    /**
+     * Date, DateTime or DateTime64(3) from epoch milliseconds.
+     */
+    public NativeBatchWriter writeDateTime( long millis ) {
+        var c = current();
+        c.addLong( c.column.fromMillis( millis ) );
+        return next();
+    }
+
+    public NativeBatchWriter writeString( byte[] value ) {
+        return writeString( value, 0, value.length );
+    }
+
+    public NativeBatchWriter writeString( byte[] value, int offset, int length ) {
+        var c = string( length );
+        c.ensureBytes( length );
+        System.arraycopy( value, offset, c.bytes, c.bytesSize, length );
+        c.addString( length );
+        return next();
+    }
+
+    public NativeBatchWriter writeString( CharSequence value ) {
+        var length = BinaryOutput.utf8Length( value );
+        var c = string( length );
+        c.ensureBytes( length );
+        BinaryOutput.encodeUtf8( value, c.bytes, c.bytesSize );
+        c.addString( length );
+        return next();
+    }
+
+    /**
+     * Starts an array column; the next {@code size} values are its elements.
+     */
+    public NativeBatchWriter writeArray( int size ) {
+        var c = column();
+        if( !c.column.array || arrayRemaining > 0 ) throw unexpected( c, "array" );
+
+        c.addArray( size );
+        if( size == 0 ) column++;
+        else arrayRemaining = size;
+        return this;
+    }
+
+    /**
+     * Completes the row, sending the block once it has {@code blockRows} rows.
+     */
+    public void endRow() throws IOException {
+        if( column != columns.length )
+            throw new IllegalStateException( "row " + totalRows + " ends before column " + columns[column].column.name );
+        column = 0;
+        rows++;
+        totalRows++;
+
+        if( rows >= blockRows ) writeBlock();
+    }
+
+    /**
+     * Sends the complete rows collected so far as a block.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Sends the collected rows and completes the insert. An incomplete last row is dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        if( column != 0 ) log.warn( "dropping incomplete row {}, next column {}", totalRows, columns[column].column.name );
+
+        try {
+            writeBlock();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if( rows == 0 ) return;
+
+        out.putVarInt( columns.length );
+        out.putVarInt( rows );
+        for( var c : columns ) c.write( out, rows );
+
+        rows = 0;
+    }
+
+    private ColumnBuffer column() {
+        if( column >= columns.length ) throw new IllegalStateException( "row " + totalRows + " has only " + columns.length + " columns" );
+        return columns[column];
+    }
+
+    private ColumnBuffer current() {
+        var c = column();
+        if( c.column.array && arrayRemaining == 0 )
+            throw new IllegalStateException( c.column.name + " is an array, call writeArray first" );
+        return c;
+    }
+
+    private ColumnBuffer string( int length ) {
+        var c = current();
+        if( !c.column.isString() ) throw unexpected( c, "string" );
+        c.column.checkFixedLength( length );
+        return c;
+    }
+
+    private NativeBatchWriter next() {
+        if( arrayRemaining == 0 || --arrayRemaining == 0 ) column++;
+        return this;
+    }
+
+    private static IllegalStateException unexpected( ColumnBuffer c, String value ) {
+        return new IllegalStateException( "cannot write " + value + " into " + c.column.name + " " + c.column.type );
+    }
+
+    /**
+     * One column of the current block: {@code values} scalars (array elements for arrays) in {@code longs},
+     * {@code doubles} or {@code bytes} + {@code ends}, and cumulative element counts per row in {@code arrayEnds}.
+     */
+    private static final class ColumnBuffer {
+        final BinaryColumn column;
+        long[] longs = new long[0];
+        double[] doubles = new double[0];
+        byte[] bytes = new byte[0];
+        int[] ends = new int[0];
+        int[] arrayEnds = new int[0];
+        int values = 0;
+        int bytesSize = 0;
+        int arrays = 0;
+
+        ColumnBuffer( BinaryColumn column ) {
+            this.column = column;
+        }
+
+        void addLong( long value ) {
+            if( values == longs.length ) longs = Arrays.copyOf( longs, grow( longs.length ) );
+            longs[values++] = value;
+        }
+
+        void addDouble( double value ) {
+            if( values == doubles.length ) doubles = Arrays.copyOf( doubles, grow( doubles.length ) );
+            doubles[values++] = value;
+        }
+
+        void ensureBytes( int length ) {
+            if( bytesSize + length > bytes.length )
+                bytes = Arrays.copyOf( bytes, Math.max( grow( bytes.length ), bytesSize + length ) );
+        }
+
+        /**
+         * Records a string whose {@code length} bytes were just copied to {@code bytes[bytesSize]}.
+         */
+        void addString( int length ) {
+            if( values == ends.length ) ends = Arrays.copyOf( ends, grow( ends.length ) );
+            bytesSize += length;
+            ends[values++] = bytesSize;
+        }
+
+        void addArray( int size ) {
+            if( arrays == arrayEnds.length ) arrayEnds = Arrays.copyOf( arrayEnds, grow( arrayEnds.length ) );
+            arrayEnds[arrays] = ( arrays == 0 ? 0 : arrayEnds[arrays - 1] ) + size;
+            arrays++;
+        }
+
+        void write( BinaryOutput out, int rows ) throws IOException {
+            out.putString( column.name );
+            out.putString( column.type );
+
+            if( column.array )
+                for( int i = 0; i < rows; i++ ) out.putLong( arrayEnds[i] );
+
+            var count = column.array ? ( rows == 0 ? 0 : arrayEnds[rows - 1] ) : rows;
+            switch( column.encoder ) {
+                case FLOAT64 -> {
+                    for( int i = 0; i < count; i++ ) out.putLong( Double.doubleToRawLongBits( doubles[i] ) );
+                }
+                case STRING -> {
+                    for( int i = 0, start = 0; i < count; start = ends[i++] ) {
+                        out.putVarInt( ends[i] - start );
+                        out.putBytes( bytes, start, ends[i] - start );
+                    }
+                }
+                case FIXED_STRING -> {
+                    for( int i = 0, start = 0; i < count; start = ends[i++] ) {
+                        out.putBytes( bytes, start, ends[i] - start );
+                        out.putZeros( column.length - ( ends[i] - start ) );
+                    }
+                }
+                default -> {
+                    for( int i = 0; i < count; i++ ) column.write( out, longs[i] );
+                }
+            }
+
+            retain( count, rows );
+        }
+
+        /**
+         * Drops the first {@code rows} rows ({@code count} values), keeping a row that is still being written.
+         */
+        private void retain( int count, int rows ) {
+            var left = values - count;
+            if( column.isString() ) {
+                var start = count == 0 ? 0 : ends[count - 1];
+                System.arraycopy( bytes, start, bytes, 0, bytesSize - start );
+                for( int i = 0; i < left; i++ ) ends[i] = ends[count + i] - start;
+                bytesSize -= start;
+            } else if( column.encoder == BinaryColumn.Encoder.FLOAT64 )
+                System.arraycopy( doubles, count, doubles, 0, left );
+            else
+                System.arraycopy( longs, count, longs, 0, left );
+            values = left;
+
+            if( column.array ) {
+                for( int i = 0; i < arrays - rows; i++ ) arrayEnds[i] = arrayEnds[rows + i] - count;
+                arrays -= rows;
+            }
+        }
+
+        private static int grow( int length ) {
+            return Math.max( 16, length + ( length >> 1 ) );
+        }
+    }
+}
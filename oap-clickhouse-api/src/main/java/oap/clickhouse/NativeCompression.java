@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.OutputStream;
+
+/**
+ * ClickHouse's own compressed-block format for request bodies, sent with {@code decompress=1}.
+ * {@link #NONE} leaves the body as is.
+ */
+public enum NativeCompression {
+    NONE( 0x02 ) {
+        @Override
+        public OutputStream compress( OutputStream out, int blockSize ) {
+            return out;
+        }
+
+        /**
+         * the NONE codec block, stored as is
+         */
+        @Override
+        int maxCompressedLength( int length ) {
+            return length;
+        }
+
+        @Override
+        int compress( byte[] src, int srcLength, byte[] dest, int destOffset ) {
+            System.arraycopy( src, 0, dest, destOffset, srcLength );
+            return srcLength;
+        }
+    },
+    LZ4( 0x82 ) {
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+        @Override
+        int maxCompressedLength( int length ) {
+            return compressor.maxCompressedLength( length );
+        }
+
+        @Override
+        int compress( byte[] src, int srcLength, byte[] dest, int destOffset ) {
+            return compressor.compress( src, 0, srcLength, dest, destOffset, dest.length - destOffset );
+        }
+    },
+    ZSTD( 0x90 ) {
+        @Override
+        int maxCompressedLength( int length ) {
+            return ( int ) Zstd.compressBound( length );
+        }
+
+        @Override
+        int compress( byte[] src, int srcLength, byte[] dest, int destOffset ) {
+            long size = Zstd.compressByteArray( dest, destOffset, dest.length - destOffset, src, 0, srcLength, 1 );
+            if( Zstd.isError( size ) ) throw new ClickhouseException( Zstd.getErrorName( size ), 0, null );
+            return ( int ) size;
+        }
+    };
+
+    public final byte method;
+
+    NativeCompression( int method ) {
+        this.method = ( byte ) method;
+    }
+
+    public OutputStream compress( OutputStream out, int blockSize ) {
+        return new ClickhouseCompressedOutputStream( out, this, blockSize );
+    }
+
+    abstract int maxCompressedLength( int length );
+
+    abstract int compress( byte[] src, int srcLength, byte[] dest, int destOffset );
+}
@@ -0,0 +1,531 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * One HTTP/1.1 request/response over a {@link ConnectionPool} socket.
+ * The connection goes back to the pool as soon as the response body has been read to its end.
+ * <p>
+ * A request that fails on a reused socket the server has already closed is sent again on a new one, but only if
+ * none of it reached the wire or it is a {@code read}: a statement that may have run is never run twice.
+ */
+@Slf4j
+public class PooledHttpExchange implements ClickhouseStream.Connection {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final int REPLAY_LIMIT = 64 * 1024;
+
+    private final ConnectionPool pool;
+    private final String host;
+    private final int port;
+    private final byte[] requestHead;
+    private final long timeout;
+    private final boolean read;
+    private final ChunkedOutputStream body;
+    private final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    private volatile ConnectionPool.PooledConnection connection;
+    private volatile boolean aborted = false;
+    /**
+     * bytes written to the connection; any of them may have reached the server once they are flushed or exceed
+     * {@link ConnectionPool#BUFFER_SIZE}
+     */
+    private long written = 0;
+    private boolean flushed = false;
+    private int code = -1;
+    private boolean keepAlive = true;
+    private InputStream responseBody;
+    private BiConsumer<String, String> headerListener;
+
+    private PooledHttpExchange( ConnectionPool pool, String host, int port, byte[] requestHead, int chunkSize, long timeout,
+                                boolean read ) throws IOException {
+        this.pool = pool;
+        this.host = host;
+        this.port = port;
+        this.requestHead = requestHead;
+        this.timeout = timeout;
+        this.read = read;
+        this.body = chunkSize > 0 ? new ChunkedOutputStream( chunkSize ) : null;
+
+        connection = pool.acquire( host, port, timeout );
+        try {
+            writeHead();
+        } catch( IOException e ) {
+            connection.abort();
+            if( !connection.isReused() ) throw e;
+
+            log.trace( "stale connection to {}:{}, retrying on a new one: {}", host, port, e.toString() );
+            written = 0;
+            flushed = false;
+            connection = pool.acquire( host, port, timeout );
+            try {
+                writeHead();
+            } catch( IOException | RuntimeException e2 ) {
+                connection.abort();
+                throw e2;
+            }
+        } catch( RuntimeException e ) {
+            connection.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * @param read the statement only reads, so it may be sent again if the connection turns out to be stale
+     */
+    public static PooledHttpExchange post( ConnectionPool pool, String host, int port, String target,
+                                           Map<String, String> headers, int chunkSize, long timeout, boolean read ) throws IOException {
+        var head = new StringBuilder( "POST " ).append( target ).append( " HTTP/1.1\r\n" )
+            .append( "Host: " ).append( host ).append( ':' ).append( port ).append( "\r\n" )
+            .append( "Transfer-Encoding: chunked\r\n" )
+            .append( "Connection: keep-alive\r\n" );
+        headers.forEach( ( name, value ) -> head.append( name ).append( ": " ).append( value ).append( "\r\n" ) );
+        head.append( "\r\n" );
+
+        return new PooledHttpExchange( pool, host, port, head.toString().getBytes( StandardCharsets.ISO_8859_1 ), Math.max( chunkSize, 1 ), timeout, read );
+    }
+
+    public static PooledHttpExchange get( ConnectionPool pool, String host, int port, String target, long timeout ) throws IOException {
+        var head = "GET " + target + " HTTP/1.1\r\n"
+            + "Host: " + host + ':' + port + "\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+        return new PooledHttpExchange( pool, host, port, head.getBytes( StandardCharsets.ISO_8859_1 ), 0, timeout, true );
+    }
+
+    /**
+     * @param listener gets every response header as it is read, the name in lower case
+     */
+    public void onHeader( BiConsumer<String, String> listener ) {
+        this.headerListener = listener;
+    }
+
+    public OutputStream getOutputStream() {
+        return body;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        if( code < 0 ) readResponseHead();
+        return code;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        getResponseCode();
+        return responseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() throws IOException {
+        return getInputStream();
+    }
+
+    @Override
+    public String getHeader( String name ) {
+        return headers.get( name.toLowerCase() );
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+        connection.abort();
+    }
+
+    private void writeHead() throws IOException {
+        send( requestHead, requestHead.length );
+        if( body == null ) flush();
+    }
+
+    private void send( byte[] data, int length ) throws IOException {
+        written += length;
+        connection.out.write( data, 0, length );
+    }
+
+    private void flush() throws IOException {
+        flushed = true;
+        connection.out.flush();
+    }
+
+    /**
+     * @return some of the request may have reached the server
+     */
+    private boolean sent() {
+        return flushed || written >= ConnectionPool.BUFFER_SIZE;
+    }
+
+    private void readResponseHead() throws IOException {
+        if( body != null ) body.close();
+
+        try {
+            connection.setReadTimeout( timeout );
+            readStatusAndHeaders();
+        } catch( EOFException | SocketException e ) {
+            connection.abort();
+            if( !connection.isReused() || !headers.isEmpty() || code >= 0 || !isReplayable() || sent() && !read ) throw e;
+
+            log.trace( "stale connection to {}:{}, retrying on a new one: {}", host, port, e.toString() );
+            connection = pool.acquire( host, port, timeout );
+            try {
+                if( aborted ) throw new SocketException( "aborted" );
+                send( requestHead, requestHead.length );
+                if( body != null ) body.replay();
+                flush();
+                connection.setReadTimeout( timeout );
+                readStatusAndHeaders();
+            } catch( IOException | RuntimeException e2 ) {
+                connection.abort();
+                throw e2;
+            }
+        } catch( IOException | RuntimeException e ) {
+            connection.abort();
+            throw e;
+        }
+
+        InputStream framed;
+        var transferEncoding = headers.get( "transfer-encoding" );
+        var contentLength = headers.get( "content-length" );
+        if( transferEncoding != null && transferEncoding.toLowerCase().contains( "chunked" ) )
+            framed = new ChunkedInputStream( connection.in );
+        else if( contentLength != null ) framed = new FixedLengthInputStream( connection.in, Long.parseLong( contentLength.trim() ) );
+        else if( code == 204 || code == 304 )
+            framed = new FixedLengthInputStream( connection.in, 0 );
+        else {
+            keepAlive = false;
+            framed = connection.in;
+        }
+
+        responseBody = new ResponseBody( framed, connection, keepAlive );
+    }
+
+    private boolean isReplayable() {
+        return body == null || body.replayable();
+    }
+
+    private void readStatusAndHeaders() throws IOException {
+        headers.clear();
+        code = -1;
+        do {
+            var status = readLine( connection.in );
+            if( status == null ) throw new EOFException( "connection closed by " + host + ":" + port );
+            if( !status.startsWith( "HTTP/1." ) || status.length() < 12 )
+                throw new IOException( "invalid status line: " + status );
+
+            var http10 = status.charAt( 7 ) == '0';
+            var statusCode = Integer.parseInt( status.substring( 9, 12 ) );
+
+            String line;
+            while( ( line = readLine( connection.in ) ) != null && !line.isEmpty() ) {
+                var idx = line.indexOf( ':' );
+                if( idx <= 0 ) continue;
+                var name = line.substring( 0, idx ).trim().toLowerCase();
+                var value = line.substring( idx + 1 ).trim();
+                headers.put( name, value );
+                if( headerListener != null ) headerListener.accept( name, value );
+            }
+            if( line == null ) throw new EOFException( "connection closed by " + host + ":" + port );
+
+            var connectionHeader = headers.getOrDefault( "connection", "" ).toLowerCase();
+            keepAlive = http10 ? connectionHeader.contains( "keep-alive" ) : !connectionHeader.contains( "close" );
+
+            if( statusCode >= 200 || statusCode < 100 ) code = statusCode;
+            else headers.clear();
+        } while( code < 0 );
+    }
+
+    static String readLine( InputStream in ) throws IOException {
+        var sb = new StringBuilder();
+        int b;
+        while( ( b = in.read() ) >= 0 ) {
+            if( b == '\n' ) {
+                var len = sb.length();
+                if( len > 0 && sb.charAt( len - 1 ) == '\r' ) sb.setLength( len - 1 );
+                return sb.toString();
+            }
+            if( sb.length() > 64 * 1024 ) throw new IOException( "header line is too long" );
+            sb.append( ( char ) b );
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private class ChunkedOutputStream extends OutputStream {
+        private final byte[] buffer;
+        private int count = 0;
+        private int chunks = 0;
+        private byte[] replay = new byte[0];
+        private boolean closed = false;
+
+        private ChunkedOutputStream( int chunkSize ) {
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            if( count == buffer.length ) writeChunk();
+            buffer[count++] = ( byte ) b;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            while( len > 0 ) {
+                if( count == buffer.length ) writeChunk();
+
+                var size = Math.min( len, buffer.length - count );
+                System.arraycopy( b, off, buffer, count, size );
+                count += size;
+                off += size;
+                len -= size;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if( closed ) return;
+            if( count > 0 ) writeChunk();
+            PooledHttpExchange.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if( closed ) return;
+            if( count > 0 ) writeChunk();
+
+            try {
+                writeLastChunk();
+                PooledHttpExchange.this.flush();
+            } catch( IOException e ) {
+                connection.abort();
+                throw e;
+            }
+            closed = true;
+        }
+
+        private void writeChunk() throws IOException {
+            if( closed ) throw new IOException( "request body is closed" );
+
+            if( replay != null )
+                replay = chunks == 0 && count <= REPLAY_LIMIT ? Arrays.copyOf( buffer, count ) : null;
+            chunks++;
+
+            try {
+                writeChunk( buffer, count );
+            } catch( IOException e ) {
+                connection.abort();
+                throw e;
+            }
+            count = 0;
+        }
+
+        private void writeChunk( byte[] data, int length ) throws IOException {
+            var size = Integer.toHexString( length ).getBytes( StandardCharsets.ISO_8859_1 );
+            send( size, size.length );
+            send( CRLF, CRLF.length );
+            send( data, length );
+            send( CRLF, CRLF.length );
+        }
+
+        private void writeLastChunk() throws IOException {
+            send( new byte[] { '0' }, 1 );
+            send( CRLF, CRLF.length );
+            send( CRLF, CRLF.length );
+        }
+
+        private boolean replayable() {
+            return replay != null;
+        }
+
+        private void replay() throws IOException {
+            if( replay.length > 0 ) writeChunk( replay, replay.length );
+            writeLastChunk();
+        }
+    }
+
+    private static class ResponseBody extends InputStream {
+        private final InputStream in;
+        private final ConnectionPool.PooledConnection connection;
+        private final boolean reusable;
+        private boolean eof = false;
+
+        /**
+         * @param keepAlive the server did not ask to close the connection
+         */
+        private ResponseBody( InputStream in, ConnectionPool.PooledConnection connection, boolean keepAlive ) {
+            this.in = in;
+            this.connection = connection;
+            this.reusable = keepAlive && ( in instanceof ChunkedInputStream || in instanceof FixedLengthInputStream );
+        }
+
+        @Override
+        public int read() throws IOException {
+            if( eof ) return -1;
+            try {
+                var b = in.read();
+                if( b < 0 ) eof();
+                return b;
+            } catch( IOException e ) {
+                connection.abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( eof ) return -1;
+            try {
+                var n = in.read( b, off, len );
+                if( n < 0 ) eof();
+                return n;
+            } catch( IOException e ) {
+                connection.abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return eof ? 0 : in.available();
+        }
+
+        @Override
+        public void close() {
+            if( !eof ) {
+                eof = true;
+                connection.release( false );
+            }
+        }
+
+        private void eof() {
+            eof = true;
+            connection.release( reusable );
+        }
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining = 0;
+        private boolean first = true;
+        private boolean eof = false;
+
+        private ChunkedInputStream( InputStream in ) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if( !nextChunk() ) return -1;
+            var b = in.read();
+            if( b < 0 ) throw new EOFException( "unexpected end of chunked response" );
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( len == 0 ) return 0;
+            if( !nextChunk() ) return -1;
+            var n = in.read( b, off, ( int ) Math.min( len, remaining ) );
+            if( n < 0 ) throw new EOFException( "unexpected end of chunked response" );
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return eof ? 0 : ( int ) Math.min( remaining, in.available() );
+        }
+
+        private boolean nextChunk() throws IOException {
+            if( eof ) return false;
+            if( remaining > 0 ) return true;
+
+            if( !first ) {
+                var crlf = readLine( in );
+                if( crlf == null || !crlf.isEmpty() ) throw new IOException( "invalid chunk terminator" );
+            }
+            first = false;
+
+            var line = readLine( in );
+            if( line == null ) throw new EOFException( "unexpected end of chunked response" );
+            var ext = line.indexOf( ';' );
+            remaining = Long.parseLong( ( ext >= 0 ? line.substring( 0, ext ) : line ).trim(), 16 );
+
+            if( remaining == 0 ) {
+                String trailer;
+                do {
+                    trailer = readLine( in );
+                } while( trailer != null && !trailer.isEmpty() );
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        private FixedLengthInputStream( InputStream in, long length ) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if( remaining <= 0 ) return -1;
+            var b = in.read();
+            if( b < 0 ) throw new EOFException( "unexpected end of response" );
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( remaining <= 0 ) return -1;
+            if( len == 0 ) return 0;
+            var n = in.read( b, off, ( int ) Math.min( len, remaining ) );
+            if( n < 0 ) throw new EOFException( "unexpected end of response" );
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return ( int ) Math.min( remaining, in.available() );
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.ToString;
+
+import java.util.regex.Pattern;
+
+/**
+ * Numbers of one request from the X-ClickHouse-Summary or X-ClickHouse-Progress header.
+ */
+@ToString
+public class QueryStats {
+    private static final Pattern FIELD = Pattern.compile( "\"(\\w+)\"\\s*:\\s*\"?(\\d+)\"?" );
+
+    public final String queryId;
+    public long readRows;
+    public long readBytes;
+    public long writtenRows;
+    public long writtenBytes;
+    public long totalRowsToRead;
+    public long resultRows;
+    public long resultBytes;
+    public long elapsedNs;
+
+    public QueryStats( String queryId ) {
+        this.queryId = queryId;
+    }
+
+    /**
+     * @param json {"read_rows":"1","read_bytes":"8",...}, numbers may be quoted
+     */
+    public static QueryStats parse( String queryId, String json ) {
+        var stats = new QueryStats( queryId );
+        if( json == null ) return stats;
+
+        var matcher = FIELD.matcher( json );
+        while( matcher.find() ) {
+            var value = Long.parseLong( matcher.group( 2 ) );
+            switch( matcher.group( 1 ) ) {
+                case "read_rows" -> stats.readRows = value;
+                case "read_bytes" -> stats.readBytes = value;
+                case "written_rows" -> stats.writtenRows = value;
+                case "written_bytes" -> stats.writtenBytes = value;
+                case "total_rows_to_read" -> stats.totalRowsToRead = value;
+                case "result_rows" -> stats.resultRows = value;
+                case "result_bytes" -> stats.resultBytes = value;
+                case "elapsed_ns" -> stats.elapsedNs = value;
+                default -> {
+                }
+            }
+        }
+        return stats;
+    }
+}
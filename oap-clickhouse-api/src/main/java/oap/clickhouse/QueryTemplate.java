@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A {@code ${NAME}} query template parsed once into literal and placeholder segments.
+ * Unresolved placeholders render as an empty string, same as {@link oap.util.Strings#substitute(String, Function)}.
+ */
+public final class QueryTemplate {
+    public final String template;
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    private QueryTemplate( String template, String[] literals, String[] names ) {
+        this.template = template;
+        this.literals = literals;
+        this.names = names;
+
+        var length = 0;
+        for( var literal : literals ) length += literal.length();
+        this.literalLength = length;
+    }
+
+    public static QueryTemplate parse( String template ) {
+        var literals = new ArrayList<String>();
+        var names = new ArrayList<String>();
+
+        var position = 0;
+        int start;
+        while( ( start = template.indexOf( "${", position ) ) >= 0 ) {
+            var end = template.indexOf( '}', start + 2 );
+            if( end < 0 ) break;
+
+            literals.add( template.substring( position, start ) );
+            names.add( template.substring( start + 2, end ) );
+            position = end + 1;
+        }
+        literals.add( template.substring( position ) );
+
+        return new QueryTemplate( template, literals.toArray( new String[0] ), names.toArray( new String[0] ) );
+    }
+
+    public List<String> getPlaceholders() {
+        return List.of( names );
+    }
+
+    public String render( Function<String, ?> values ) {
+        if( names.length == 0 ) return template;
+
+        var resolved = new String[names.length];
+        var length = literalLength;
+        for( var i = 0; i < names.length; i++ ) {
+            var value = values != null ? values.apply( names[i] ) : null;
+            resolved[i] = value != null ? value.toString() : "";
+            length += resolved[i].length();
+        }
+
+        var sb = new StringBuilder( length );
+        for( var i = 0; i < names.length; i++ ) sb.append( literals[i] ).append( resolved[i] );
+        return sb.append( literals[names.length] ).toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
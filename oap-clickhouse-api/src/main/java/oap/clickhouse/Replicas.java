@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The hosts of a client with a circuit breaker each. A host is skipped for {@code breakerTimeout} after
+ * {@code breakerFailures} consecutive failed requests or health checks; the first request after that is a trial that
+ * closes the breaker on success. When every host is skipped, requests still go to the selected one.
+ */
+@Slf4j
+public class Replicas implements Closeable {
+    public final List<Replica> read;
+    public final List<Replica> write;
+    public final LoadBalancing readBalancing;
+    public final LoadBalancing writeBalancing;
+    public final int breakerFailures;
+    public final long breakerTimeout;
+    private final AtomicInteger readCounter = new AtomicInteger();
+    private final AtomicInteger writeCounter = new AtomicInteger();
+    private ScheduledExecutorService healthCheck;
+
+    /**
+     * @param read  host:port
+     * @param write host:port, empty - same as {@code read}
+     */
+    public Replicas( List<String> read, List<String> write, LoadBalancing readBalancing, LoadBalancing writeBalancing,
+                     int breakerFailures, long breakerTimeout ) {
+        this.readBalancing = readBalancing;
+        this.writeBalancing = writeBalancing;
+        this.breakerFailures = breakerFailures;
+        this.breakerTimeout = breakerTimeout;
+        var replicas = new LinkedHashMap<String, Replica>();
+        this.read = parse( read, replicas );
+        this.write = write.isEmpty() ? this.read : parse( write, replicas );
+    }
+
+    private List<Replica> parse( List<String> hosts, LinkedHashMap<String, Replica> replicas ) {
+        if( hosts.isEmpty() ) throw new IllegalArgumentException( "no hosts" );
+
+        var list = new ArrayList<Replica>();
+        for( var host : hosts ) {
+            var i = host.lastIndexOf( ':' );
+            if( i < 0 ) throw new IllegalArgumentException( "host:port expected, got " + host );
+            list.add( replicas.computeIfAbsent( host, k ->
+                new Replica( host.substring( 0, i ), Integer.parseInt( host.substring( i + 1 ) ) ) ) );
+        }
+        return List.copyOf( list );
+    }
+
+    /**
+     * Pings every host each {@code interval}, a failed ping counts as a failed request, a successful one closes the breaker.
+     */
+    public synchronized void startHealthCheck( long interval, BiPredicate<String, Integer> ping ) {
+        if( healthCheck != null ) return;
+
+        healthCheck = Executors.newSingleThreadScheduledExecutor( r -> {
+            var thread = new Thread( r, "clickhouse-health-check" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        healthCheck.scheduleWithFixedDelay( () -> {
+            for( var replica : all() ) {
+                var start = System.nanoTime();
+                if( ping.test( replica.host, replica.port ) ) {
+                    replica.latency( ( System.nanoTime() - start ) / 1000 );
+                    replica.success();
+                } else replica.failure();
+            }
+        }, 0, interval, MILLISECONDS );
+    }
+
+    public List<Replica> all() {
+        var all = new ArrayList<>( read );
+        for( var replica : write ) if( !all.contains( replica ) ) all.add( replica );
+        return all;
+    }
+
+    /**
+     * Picks a host and counts the request as outstanding until {@link Replica#release(Throwable)}.
+     */
+    public Replica acquire( boolean write ) {
+        var replicas = write ? this.write : this.read;
+        var replica = select( replicas, write ? writeBalancing : readBalancing, write ? writeCounter : readCounter );
+        replica.acquire();
+        return replica;
+    }
+
+    /**
+     * Counts a request to a given host, e.g. a KILL QUERY that must reach the host running the query.
+     */
+    public Replica acquire( Replica replica ) {
+        replica.acquire();
+        return replica;
+    }
+
+    private static Replica select( List<Replica> replicas, LoadBalancing balancing, AtomicInteger counter ) {
+        if( replicas.size() == 1 ) return replicas.get( 0 );
+
+        var now = System.currentTimeMillis();
+        var available = new ArrayList<Replica>( replicas.size() );
+        for( var replica : replicas ) if( replica.isAvailable( now ) ) available.add( replica );
+        if( available.isEmpty() ) available.addAll( replicas );
+
+        var start = Math.floorMod( counter.getAndIncrement(), available.size() );
+        if( balancing == LoadBalancing.ROUND_ROBIN ) return available.get( start );
+
+        Replica best = null;
+        for( var i = 0; i < available.size(); i++ ) {
+            var replica = available.get( ( start + i ) % available.size() );
+            if( best == null || ( balancing == LoadBalancing.NEAREST
+                ? replica.latency < best.latency
+                : replica.outstanding.get() < best.outstanding.get() ) ) best = replica;
+        }
+        return best;
+    }
+
+    @Override
+    public synchronized void close() {
+        if( healthCheck != null ) healthCheck.shutdownNow();
+        healthCheck = null;
+    }
+
+    public final class Replica {
+        public final String host;
+        public final int port;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long latency = 0;
+        private int failures = 0;
+        private volatile long openUntil = 0;
+
+        private Replica( String host, int port ) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return health check round trip, microseconds
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        public boolean isAvailable( long now ) {
+            return now >= openUntil;
+        }
+
+        private synchronized void acquire() {
+            outstanding.incrementAndGet();
+            // a half-open breaker lets a single trial through
+            if( failures >= breakerFailures ) openUntil = System.currentTimeMillis() + breakerTimeout;
+        }
+
+        /**
+         * @param failure null on success; {@link ClickhouseException#isRetryable(Throwable) retryable} failures and
+         *                timeouts count against the host, errors of the query itself do not, and a request the caller
+         *                cancelled counts neither way
+         */
+        public void release( Throwable failure ) {
+            outstanding.decrementAndGet();
+            if( failure == null ) success();
+            else if( ClickhouseException.causedBy( failure, CancellationException.class ) ) return;
+            else if( ClickhouseException.isRetryable( failure ) || ClickhouseException.causedBy( failure, TimeoutException.class ) ) failure();
+            else success();
+        }
+
+        private synchronized void success() {
+            if( failures >= breakerFailures ) log.info( "{}:{} is back", host, port );
+            failures = 0;
+            openUntil = 0;
+        }
+
+        private synchronized void failure() {
+            if( ++failures < breakerFailures ) return;
+
+            if( failures == breakerFailures ) log.warn( "{}:{} is down for {}ms", host, port, breakerTimeout );
+            openUntil = System.currentTimeMillis() + breakerTimeout;
+        }
+
+        private void latency( long micros ) {
+            latency = latency == 0 ? micros : ( latency * 7 + micros ) / 8;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
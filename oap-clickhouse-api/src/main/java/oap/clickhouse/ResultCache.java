@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Raw responses of {@link ClickhouseClient#withResultCache()} reads, bounded by their size in bytes.
+ * An entry older than {@code ttl} is served for {@code staleTtl} more while it is reloaded on {@code reloader}.
+ * Inserts, truncates, drops and alters through the same client drop the entries reading the written table.
+ * Reads of {@code system.*} tables change without such writes and are never cached.
+ */
+@Slf4j
+final class ResultCache {
+    private static final Pattern CACHEABLE = Pattern.compile( "^(?:SELECT|WITH)\\b", Pattern.CASE_INSENSITIVE );
+    private static final Pattern SYSTEM_SOURCE = Pattern.compile( "\\b(?:FROM|JOIN)\\s+[`\"]?system[`\"]?\\.", Pattern.CASE_INSENSITIVE );
+    private static final Pattern SOURCE_TABLE = Pattern.compile( "\\b(?:FROM|JOIN)\\s+([\\w.`\"]+)", Pattern.CASE_INSENSITIVE );
+    private static final Pattern TARGET_TABLE = Pattern.compile( "^\\s*(?:INSERT\\s+INTO|TRUNCATE(?:\\s+TABLE)?|DROP\\s+(?:TABLE|VIEW|DICTIONARY)"
+        + "|ALTER\\s+TABLE|RENAME\\s+TABLE|EXCHANGE\\s+TABLES)(?:\\s+IF\\s+EXISTS)?\\s+([\\w.`\"]+)", Pattern.CASE_INSENSITIVE );
+    private static final Pattern DROP_DATABASE = Pattern.compile( "^\\s*DROP\\s+DATABASE\\b", Pattern.CASE_INSENSITIVE );
+
+    private final Cache<String, Entry> cache;
+    private final long ttl;
+    private final long staleTtl;
+    private final ExecutorService reloader;
+    private final ConcurrentHashMap<String, AtomicLong> writes = new ConcurrentHashMap<>();
+    private final AtomicLong clears = new AtomicLong();
+
+    /**
+     * @param reloader runs the reloads of stale entries, shut down by {@link #close()}
+     */
+    ResultCache( long maxBytes, long ttl, long staleTtl, ExecutorService reloader ) {
+        this.ttl = ttl;
+        this.staleTtl = staleTtl;
+        this.reloader = reloader;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight( maxBytes )
+            .<String, Entry>weigher( ( key, entry ) -> key.length() * 2 + entry.data.length )
+            .expireAfterWrite( ttl + staleTtl, MILLISECONDS )
+            .build();
+    }
+
+    static boolean isCacheable( String query ) {
+        return CACHEABLE.matcher( query ).find() && !SYSTEM_SOURCE.matcher( query ).find();
+    }
+
+    /**
+     * Collapses whitespace outside of quotes and drops a trailing ';'.
+     */
+    static String normalize( String query ) {
+        var sb = new StringBuilder( query.length() );
+        char quote = 0;
+        var space = false;
+        for( var i = 0; i < query.length(); i++ ) {
+            var c = query.charAt( i );
+            if( quote != 0 ) {
+                sb.append( c );
+                if( c == '\\' && i + 1 < query.length() ) sb.append( query.charAt( ++i ) );
+                else if( c == quote ) quote = 0;
+            } else if( Character.isWhitespace( c ) ) space = sb.length() > 0;
+            else {
+                if( space ) sb.append( ' ' );
+                space = false;
+                if( c == '\'' || c == '"' || c == '`' ) quote = c;
+                sb.append( c );
+            }
+        }
+        var length = sb.length();
+        while( length > 0 && ( sb.charAt( length - 1 ) == ';' || sb.charAt( length - 1 ) == ' ' ) ) length--;
+        sb.setLength( length );
+        return sb.toString();
+    }
+
+    /**
+     * @param key   the normalized query with everything else that changes its result: database, user, settings
+     * @param query the normalized query, for its source tables
+     */
+    byte[] get( String key, String query, Supplier<byte[]> load ) {
+        var entry = cache.getIfPresent( key );
+        if( entry != null ) {
+            var age = System.currentTimeMillis() - entry.created;
+            if( age < ttl ) {
+                ClickhouseMetrics.cache( "hit" );
+                return entry.data;
+            }
+            if( age < ttl + staleTtl ) {
+                ClickhouseMetrics.cache( "stale" );
+                if( entry.reloading.compareAndSet( false, true ) ) reload( key, query, load, entry );
+                return entry.data;
+            }
+        }
+        ClickhouseMetrics.cache( "miss" );
+        return load( key, query, load, null );
+    }
+
+    private void reload( String key, String query, Supplier<byte[]> load, Entry stale ) {
+        try {
+            reloader.execute( () -> {
+                try {
+                    load( key, query, load, stale );
+                } catch( RuntimeException e ) {
+                    log.debug( "cannot reload {}: {}", query, e.getMessage() );
+                    stale.reloading.set( false );
+                }
+            } );
+        } catch( RejectedExecutionException e ) {
+            stale.reloading.set( false );
+        }
+    }
+
+    /**
+     * @param stale the entry being reloaded, null on a miss
+     */
+    private byte[] load( String key, String query, Supplier<byte[]> load, Entry stale ) {
+        var tables = sourceTables( query );
+        var version = version( tables );
+        var created = System.currentTimeMillis();
+        var data = load.get();
+        // a write that completed meanwhile may or may not be in the result
+        if( version( tables ) == version ) cache.put( key, new Entry( data, tables, created ) );
+        else if( stale != null ) stale.reloading.set( false );
+        return data;
+    }
+
+    void close() {
+        reloader.shutdownNow();
+    }
+
+    /**
+     * @param table     the insert target, null - look for the target in {@code statement}
+     * @param statement a statement that completed through the client
+     */
+    void written( String table, String statement ) {
+        if( table != null ) {
+            invalidate( table );
+            return;
+        }
+        if( isCacheable( statement ) ) return;
+
+        var matcher = TARGET_TABLE.matcher( statement );
+        if( matcher.find() ) invalidate( matcher.group( 1 ) );
+        else if( DROP_DATABASE.matcher( statement ).find() ) {
+            clears.incrementAndGet();
+            cache.invalidateAll();
+        }
+    }
+
+    void invalidate( String table ) {
+        var name = tableName( table );
+        writes.computeIfAbsent( name, n -> new AtomicLong() ).incrementAndGet();
+        cache.asMap().values().removeIf( entry -> entry.tables.contains( name ) );
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    private long version( Set<String> tables ) {
+        var version = clears.get();
+        for( var table : tables ) {
+            var counter = writes.get( table );
+            if( counter != null ) version += counter.get();
+        }
+        return version;
+    }
+
+    static Set<String> sourceTables( String query ) {
+        var tables = new HashSet<String>();
+        var matcher = SOURCE_TABLE.matcher( query );
+        while( matcher.find() ) tables.add( tableName( matcher.group( 1 ) ) );
+        return tables;
+    }
+
+    /**
+     * the table without its database and quotes, entries are dropped for a table of the same name in any database
+     */
+    private static String tableName( String table ) {
+        var name = table.substring( table.lastIndexOf( '.' ) + 1 );
+        return name.replace( "`", "" ).replace( "\"", "" );
+    }
+
+    private static final class Entry {
+        final byte[] data;
+        final Set<String> tables;
+        final long created;
+        final AtomicBoolean reloading = new AtomicBoolean();
+
+        Entry( byte[] data, Set<String> tables, long created ) {
+            this.data = data;
+            this.tables = tables;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A reusable cursor over a {@code RowBinaryWithNamesAndTypes} response. Each {@link #next()} copies the raw row into
+ * one buffer; the primitive getters decode it in place, so nothing is allocated per row unless asked for
+ * ({@link #getBytes(int)}, {@link #getString(int)}, arrays).
+ * <p>
+ * LowCardinality is transparent; Nullable, Array, integers, floats, Decimal, Bool, String, FixedString, Date, Date32,
+ * DateTime, DateTime64, Enum, UUID and IPv4/IPv6 are supported.
+ */
+public final class RowBinaryCursor {
+    private final BinaryInput in;
+    private final String[] names;
+    private final String[] types;
+    private final ColumnType[] columnTypes;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] nulls;
+    private byte[] row = new byte[256];
+    private int size = 0;
+    private long rowNumber = -1;
+
+    RowBinaryCursor( InputStream in ) throws IOException {
+        this.in = new BinaryInput( in, 64 * 1024 );
+
+        int columns = ( int ) this.in.readVarInt();
+        this.names = new String[columns];
+        this.types = new String[columns];
+        this.columnTypes = new ColumnType[columns];
+        for( int i = 0; i < columns; i++ ) names[i] = this.in.readString();
+        for( int i = 0; i < columns; i++ ) {
+            types[i] = this.in.readString();
+            columnTypes[i] = ColumnType.parse( types[i] );
+        }
+        this.offsets = new int[columns];
+        this.lengths = new int[columns];
+        this.nulls = new boolean[columns];
+    }
+
+    /**
+     * @return false once there are no more rows
+     */
+    public boolean next() throws IOException {
+        if( !in.hasMore() ) return false;
+
+        size = 0;
+        for( int i = 0; i < columnTypes.length; i++ ) readColumn( i, columnTypes[i] );
+        rowNumber++;
+        return true;
+    }
+
+    public long rowNumber() {
+        return rowNumber;
+    }
+
+    public int columns() {
+        return names.length;
+    }
+
+    public String name( int column ) {
+        return names[column];
+    }
+
+    public String type( int column ) {
+        return types[column];
+    }
+
+    /**
+     * @return the column index or -1
+     */
+    public int indexOf( String name ) {
+        for( int i = 0; i < names.length; i++ ) if( names[i].equals( name ) ) return i;
+        return -1;
+    }
+
+    public boolean isNull( int column ) {
+        return nulls[column];
+    }
+
+    /**
+     * Integers, Bool, Enum (value), Decimal (unscaled), Date (days), DateTime (seconds), DateTime64 (ticks);
+     * floats are truncated. 0 for null.
+     */
+    public long getLong( int column ) {
+        if( nulls[column] ) return 0;
+
+        var t = columnTypes[column];
+        return switch( t.kind ) {
+            case FLOAT -> ( long ) getDouble( column );
+            case INT, DECIMAL, DATE, DATETIME, DATETIME64, BOOL, ENUM -> {
+                if( t.size > 8 ) throw unsupported( column, "long" );
+                yield readLong( offsets[column], t.size, t.signed );
+            }
+            default -> throw unsupported( column, "long" );
+        };
+    }
+
+    public int getInt( int column ) {
+        return ( int ) getLong( column );
+    }
+
+    public boolean getBoolean( int column ) {
+        return getLong( column ) != 0;
+    }
+
+    /**
+     * Floats, Decimal (scaled) and integers. 0 for null.
+     */
+    public double getDouble( int column ) {
+        if( nulls[column] ) return 0;
+
+        var t = columnTypes[column];
+        return switch( t.kind ) {
+            case FLOAT -> t.size == 4
+                ? Float.intBitsToFloat( ( int ) readLong( offsets[column], 4, true ) )
+                : Double.longBitsToDouble( readLong( offsets[column], 8, true ) );
+            case DECIMAL -> getLong( column ) / Math.pow( 10, t.scale );
+            default -> getLong( column );
+        };
+    }
+
+    /**
+     * Date, Date32, DateTime and DateTime64 as epoch milliseconds.
+     */
+    public long getMillis( int column ) {
+        var t = columnTypes[column];
+        var value = getLong( column );
+        if( t.kind != Kind.DATE && t.kind != Kind.DATETIME && t.kind != Kind.DATETIME64 )
+            throw unsupported( column, "datetime" );
+
+        if( t.kind == Kind.DATE ) return value * 86400000L;
+        if( t.kind == Kind.DATETIME ) return value * 1000L;
+        return t.scale <= 3 ? value * ( long ) Math.pow( 10, 3 - t.scale ) : value / ( long ) Math.pow( 10, t.scale - 3 );
+    }
+
+    /**
+     * The buffer backing the current row; a value spans {@link #length(int)} bytes from {@link #offset(int)}.
+     */
+    public byte[] array() {
+        return row;
+    }
+
+    public int offset( int column ) {
+        return offsets[column];
+    }
+
+    public int length( int column ) {
+        return lengths[column];
+    }
+
+    /**
+     * A copy of the raw value: the bytes of String/FixedString, little-endian bytes of fixed-size types. Null for null.
+     */
+    public byte[] getBytes( int column ) {
+        if( nulls[column] ) return null;
+        return Arrays.copyOfRange( row, offsets[column], offsets[column] + lengths[column] );
+    }
+
+    /**
+     * String and FixedString (with trailing zero bytes) decoded as UTF-8. Null for null.
+     */
+    public String getString( int column ) {
+        if( nulls[column] ) return null;
+        if( columnTypes[column].kind != Kind.STRING ) throw unsupported( column, "string" );
+        return new String( row, offsets[column], lengths[column], UTF_8 );
+    }
+
+    public int getArraySize( int column ) {
+        if( columnTypes[column].kind != Kind.ARRAY ) throw unsupported( column, "array" );
+        if( nulls[column] ) return 0;
+        return ( int ) readVarInt( offsets[column] );
+    }
+
+    /**
+     * Elements of an array of integers or Enum.
+     */
+    public long[] getLongArray( int column ) {
+        var element = element( column );
+        if( element.size <= 0 || element.size > 8 || element.kind == Kind.FLOAT || element.nullable )
+            throw unsupported( column, "long[]" );
+
+        var values = new long[getArraySize( column )];
+        var position = offsets[column] + varIntSize( offsets[column] );
+        for( int i = 0; i < values.length; i++, position += element.size )
+            values[i] = readLong( position, element.size, element.signed );
+        return values;
+    }
+
+    /**
+     * Elements of an array of String or FixedString.
+     */
+    public String[] getStringArray( int column ) {
+        var element = element( column );
+        if( element.kind != Kind.STRING || element.nullable ) throw unsupported( column, "String[]" );
+
+        var values = new String[getArraySize( column )];
+        var position = offsets[column] + varIntSize( offsets[column] );
+        for( int i = 0; i < values.length; i++ ) {
+            int length = element.size > 0 ? element.size : ( int ) readVarInt( position );
+            if( element.size <= 0 ) position += varIntSize( position );
+            values[i] = new String( row, position, length, UTF_8 );
+            position += length;
+        }
+        return values;
+    }
+
+    private ColumnType element( int column ) {
+        var t = columnTypes[column];
+        if( t.kind != Kind.ARRAY ) throw unsupported( column, "array" );
+        return t.element;
+    }
+
+    private void readColumn( int column, ColumnType t ) throws IOException {
+        if( t.nullable && copyByte() != 0 ) {
+            nulls[column] = true;
+            offsets[column] = size;
+            lengths[column] = 0;
+            return;
+        }
+        nulls[column] = false;
+
+        if( t.kind == Kind.STRING && t.size < 0 ) {
+            int length = ( int ) copyVarInt();
+            offsets[column] = size;
+            copy( length );
+        } else {
+            offsets[column] = size;
+            readValue( t );
+        }
+        lengths[column] = size - offsets[column];
+    }
+
+    private void readValue( ColumnType t ) throws IOException {
+        if( t.size > 0 ) {
+            copy( t.size );
+            return;
+        }
+        switch( t.kind ) {
+            case STRING -> copy( ( int ) copyVarInt() );
+            case ARRAY -> {
+                long count = copyVarInt();
+                for( long i = 0; i < count; i++ )
+                    if( !t.element.nullable || copyByte() == 0 ) readValue( t.element );
+            }
+            default -> throw new IllegalStateException( t.kind.name() );
+        }
+    }
+
+    private int copyByte() throws IOException {
+        ensure( 1 );
+        int b = in.readByte();
+        row[size++] = ( byte ) b;
+        return b;
+    }
+
+    private long copyVarInt() throws IOException {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            int b = copyByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    private void copy( int length ) throws IOException {
+        ensure( length );
+        in.readFully( row, size, length );
+        size += length;
+    }
+
+    private void ensure( int length ) {
+        if( size + length > row.length ) row = Arrays.copyOf( row, Math.max( row.length * 2, size + length ) );
+    }
+
+    private long readLong( int position, int size, boolean signed ) {
+        long value = 0;
+        for( int i = size - 1; i >= 0; i-- ) value = value << 8 | ( row[position + i] & 0xFF );
+        if( signed && size < 8 ) {
+            int shift = 64 - size * 8;
+            value = value << shift >> shift;
+        }
+        return value;
+    }
+
+    private long readVarInt( int position ) {
+        long value = 0;
+        for( int shift = 0; ; shift += 7 ) {
+            int b = row[position++] & 0xFF;
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+    }
+
+    private int varIntSize( int position ) {
+        int n = 1;
+        while( ( row[position++] & 0x80 ) != 0 ) n++;
+        return n;
+    }
+
+    private IllegalStateException unsupported( int column, String as ) {
+        return new IllegalStateException( "cannot read " + names[column] + " " + types[column] + " as " + as );
+    }
+
+    enum Kind {
+        INT, FLOAT, DECIMAL, BOOL, ENUM, STRING, DATE, DATETIME, DATETIME64, UUID, ARRAY
+    }
+
+    static final class ColumnType {
+        final Kind kind;
+        final int size;
+        final boolean signed;
+        final boolean nullable;
+        final int scale;
+        final ColumnType element;
+
+        private ColumnType( Kind kind, int size, boolean signed, boolean nullable, int scale, ColumnType element ) {
+            this.kind = kind;
+            this.size = size;
+            this.signed = signed;
+            this.nullable = nullable;
+            this.scale = scale;
+            this.element = element;
+        }
+
+        private static ColumnType of( Kind kind, int size, boolean signed ) {
+            return new ColumnType( kind, size, signed, false, 0, null );
+        }
+
+        private ColumnType nullable() {
+            return new ColumnType( kind, size, signed, true, scale, element );
+        }
+
+        static ColumnType parse( String type ) {
+            type = type.trim();
+            if( type.startsWith( "LowCardinality(" ) ) return parse( arguments( type ) );
+            if( type.startsWith( "Nullable(" ) ) return parse( arguments( type ) ).nullable();
+            if( type.startsWith( "Array(" ) )
+                return new ColumnType( Kind.ARRAY, -1, false, false, 0, parse( arguments( type ) ) );
+            if( type.startsWith( "FixedString(" ) )
+                return of( Kind.STRING, Integer.parseInt( arguments( type ).trim() ), false );
+            if( type.startsWith( "Enum8(" ) ) return of( Kind.ENUM, 1, true );
+            if( type.startsWith( "Enum16(" ) ) return of( Kind.ENUM, 2, true );
+            if( type.startsWith( "DateTime64" ) ) {
+                var precision = type.equals( "DateTime64" ) ? 3 : Integer.parseInt( arguments( type ).split( "," )[0].trim() );
+                return new ColumnType( Kind.DATETIME64, 8, true, false, precision, null );
+            }
+            if( type.startsWith( "DateTime" ) ) return of( Kind.DATETIME, 4, false );
+            if( type.startsWith( "Decimal" ) ) return decimal( type );
+
+            return switch( type ) {
+                case "Int8" -> of( Kind.INT, 1, true );
+                case "Int16" -> of( Kind.INT, 2, true );
+                case "Int32" -> of( Kind.INT, 4, true );
+                case "Int64" -> of( Kind.INT, 8, true );
+                case "Int128" -> of( Kind.INT, 16, true );
+                case "Int256" -> of( Kind.INT, 32, true );
+                case "UInt8" -> of( Kind.INT, 1, false );
+                case "UInt16" -> of( Kind.INT, 2, false );
+                case "UInt32", "IPv4" -> of( Kind.INT, 4, false );
+                case "UInt64" -> of( Kind.INT, 8, false );
+                case "UInt128" -> of( Kind.INT, 16, false );
+                case "UInt256" -> of( Kind.INT, 32, false );
+                case "Float32" -> of( Kind.FLOAT, 4, true );
+                case "Float64" -> of( Kind.FLOAT, 8, true );
+                case "Bool" -> of( Kind.BOOL, 1, false );
+                case "String" -> of( Kind.STRING, -1, false );
+                case "Date" -> of( Kind.DATE, 2, false );
+                case "Date32" -> of( Kind.DATE, 4, true );
+                case "UUID", "IPv6" -> of( Kind.UUID, 16, false );
+                default -> throw new ClickhouseException( "unsupported RowBinary type " + type, 0, null );
+            };
+        }
+
+        private static ColumnType decimal( String type ) {
+            var args = arguments( type ).split( "," );
+            int precision;
+            int scale;
+            if( type.startsWith( "Decimal(" ) ) {
+                precision = Integer.parseInt( args[0].trim() );
+                scale = args.length > 1 ? Integer.parseInt( args[1].trim() ) : 0;
+            } else {
+                precision = switch( type.substring( "Decimal".length(), type.indexOf( '(' ) ) ) {
+                    case "32" -> 9;
+                    case "64" -> 18;
+                    case "128" -> 38;
+                    default -> 76;
+                };
+                scale = Integer.parseInt( args[0].trim() );
+            }
+            var size = precision <= 9 ? 4 : precision <= 18 ? 8 : precision <= 38 ? 16 : 32;
+            return new ColumnType( Kind.DECIMAL, size, true, false, scale, null );
+        }
+
+        private static String arguments( String type ) {
+            return type.substring( type.indexOf( '(' ) + 1, type.lastIndexOf( ')' ) );
+        }
+    }
+}
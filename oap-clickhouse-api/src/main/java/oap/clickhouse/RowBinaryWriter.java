@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Writes {@link DataFormat#RowBinary} rows for a list of {@link ConfigField}s. Values are encoded straight into a
+ * reusable buffer, in column order, and every row ends with {@link #endRow()}. Materialized fields are skipped.
+ * <p>
+ * Not thread safe.
+ */
+public class RowBinaryWriter implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public final List<ConfigField> fields;
+    private final BinaryColumn[] columns;
+    private final BinaryOutput out;
+    private int column = 0;
+    private int arrayRemaining = 0;
+    private long rows = 0;
+
+    public RowBinaryWriter( List<ConfigField> fields, OutputStream out ) {
+        this( fields, out, DEFAULT_BUFFER_SIZE );
+    }
+
+    public RowBinaryWriter( List<ConfigField> fields, OutputStream out, int bufferSize ) {
+        this.fields = fields.stream().filter( f -> f.materialized.isEmpty() ).collect( toList() );
+        this.columns = this.fields.stream().map( BinaryColumn::new ).toArray( BinaryColumn[]::new );
+        this.out = new BinaryOutput( out, bufferSize );
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public RowBinaryWriter writeBoolean( boolean value ) throws IOException {
+        return writeLong( value ? 1 : 0 );
+    }
+
+    public RowBinaryWriter writeInt( int value ) throws IOException {
+        return writeLong( value );
+    }
+
+    /**
+     * Integer columns of any width, enums (by external id) and Float64.
+     */
+    public RowBinaryWriter writeLong( long value ) throws IOException {
+        var c = current();
+        switch( c.encoder ) {
+            case UINT8, INT16, INT32, INT64, FLOAT64 -> c.write( out, value );
+            default -> throw unexpected( c, "long" );
+        }
+        return next();
+    }
+
+    public RowBinaryWriter writeDouble( double value ) throws IOException {
+        var c = current();
+        if( c.encoder != BinaryColumn.Encoder.FLOAT64 ) throw unexpected( c, "double" );
+        out.putLong( Double.doubleToRawLongBits( value ) );
+        return next();
+    }
+
+    /**
+     * Date, DateTime or DateTime64(3) from epoch milliseconds.
+     */
+    public RowBinaryWriter writeDateTime( long millis ) throws IOException {
+        var c = current();
+        c.write( out, c.fromMillis( millis ) );
+        return next();
+    }
+
+    public RowBinaryWriter writeString( byte[] value ) throws IOException {
+        return writeString( value, 0, value.length );
+    }
+
+    public RowBinaryWriter writeString( byte[] value, int offset, int length ) throws IOException {
+        var c = string( length );
+        out.putBytes( value, offset, length );
+        return endString( c, length );
+    }
+
+    /**
+     * Encodes {@code value} as UTF-8 without an intermediate byte array.
+     */
+    public RowBinaryWriter writeString( CharSequence value ) throws IOException {
+        var length = BinaryOutput.utf8Length( value );
+        var c = string( length );
+        out.putUtf8( value, length );
+        return endString( c, length );
+    }
+
+    /**
+     * Starts an array column; the next {@code size} values are its elements.
+     */
+    public RowBinaryWriter writeArray( int size ) throws IOException {
+        var c = column();
+        if( !c.array || arrayRemaining > 0 ) throw unexpected( c, "array" );
+
+        out.putVarInt( size );
+        if( size == 0 ) column++;
+        else arrayRemaining = size;
+        return this;
+    }
+
+    public void endRow() {
+        if( column != columns.length )
+            throw new IllegalStateException( "row " + rows + " ends before column " + columns[column].name );
+        column = 0;
+        rows++;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Sends what is buffered and completes the insert; an incomplete last row is sent as is and rejected by the server.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private BinaryColumn column() {
+        if( column >= columns.length ) throw new IllegalStateException( "row " + rows + " has only " + columns.length + " columns" );
+        return columns[column];
+    }
+
+    private BinaryColumn current() {
+        var c = column();
+        if( c.array && arrayRemaining == 0 ) throw new IllegalStateException( c.name + " is an array, call writeArray first" );
+        return c;
+    }
+
+    private BinaryColumn string( int length ) throws IOException {
+        var c = current();
+        if( !c.isString() ) throw unexpected( c, "string" );
+        c.checkFixedLength( length );
+        if( c.encoder == BinaryColumn.Encoder.STRING ) out.putVarInt( length );
+        return c;
+    }
+
+    private RowBinaryWriter endString( BinaryColumn c, int length ) throws IOException {
+        if( c.encoder == BinaryColumn.Encoder.FIXED_STRING ) out.putZeros( c.length - length );
+        return next();
+    }
+
+    private RowBinaryWriter next() {
+        if( arrayRemaining == 0 || --arrayRemaining == 0 ) column++;
+        return this;
+    }
+
+    private static IllegalStateException unexpected( BinaryColumn c, String value ) {
+        return new IllegalStateException( "cannot write " + value + " into " + c.name + " " + c.type );
+    }
+}
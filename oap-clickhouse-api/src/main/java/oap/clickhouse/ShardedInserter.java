@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes rows straight to the local tables of several shards, one {@link BatchInserter} per shard, instead of going
+ * through a Distributed table. A row goes to the shard that owns {@code hash(key) % totalWeight}, each shard owning
+ * a range of slots as wide as its weight, the way Distributed places rows. Integral keys are used as is, so a numeric
+ * key matches a Distributed table with the same sharding expression; other keys are hashed with murmur3.
+ *
+ * @param <T> row type
+ */
+@Slf4j
+public class ShardedInserter<T> {
+    public final List<BatchInserter> shards;
+    public final List<Integer> weights;
+    private final long[] slots;
+    private final long totalWeight;
+    private final Function<? super T, ?> shardingKey;
+    private final Function<? super T, String> encoder;
+
+    /**
+     * @param shards      configured inserters, one per shard
+     * @param weights     one per shard
+     * @param shardingKey row - key
+     * @param encoder     row - line in the inserters' format, without the line feed
+     */
+    public ShardedInserter( List<BatchInserter> shards, List<Integer> weights,
+                            Function<? super T, ?> shardingKey, Function<? super T, String> encoder ) {
+        Preconditions.checkArgument( !shards.isEmpty(), "no shards" );
+        Preconditions.checkArgument( shards.size() == weights.size(), "%s shards, %s weights", shards.size(), weights.size() );
+
+        this.shards = List.copyOf( shards );
+        this.weights = List.copyOf( weights );
+        this.shardingKey = shardingKey;
+        this.encoder = encoder;
+
+        slots = new long[weights.size()];
+        long total = 0;
+        for( var i = 0; i < slots.length; i++ ) {
+            Preconditions.checkArgument( weights.get( i ) > 0, "weight of shard %s must be positive", i );
+            total += weights.get( i );
+            slots[i] = total;
+        }
+        totalWeight = total;
+    }
+
+    public void start() {
+        log.info( "shards: {}, weights: {}", shards.size(), weights );
+
+        for( var shard : shards ) shard.start();
+    }
+
+    public void stop() {
+        flush();
+        for( var shard : shards ) shard.stop();
+    }
+
+    public void insert( String table, T row ) {
+        insert( table, shardingKey.apply( row ), encoder.apply( row ) );
+    }
+
+    /**
+     * @param line a row without the trailing line feed
+     */
+    public void insert( String table, Object key, String line ) {
+        shards.get( shard( key ) ).insert( table, line );
+    }
+
+    /**
+     * @param data complete rows that all belong to {@code key}
+     */
+    public void insert( String table, Object key, byte[] data, int offset, int length, int rows ) {
+        shards.get( shard( key ) ).insert( table, data, offset, length, rows );
+    }
+
+    /**
+     * Sends everything collected so far on all shards at once, without waiting for the inserts.
+     */
+    public void flush() {
+        for( var shard : shards ) shard.flush();
+    }
+
+    public int shard( Object key ) {
+        var slot = Long.remainderUnsigned( hash( key ), totalWeight );
+        for( var i = 0; i < slots.length - 1; i++ ) if( slot < slots[i] ) return i;
+        return slots.length - 1;
+    }
+
+    private static long hash( Object key ) {
+        if( key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte )
+            return ( ( Number ) key ).longValue();
+        if( key instanceof byte[] ) return Hashing.murmur3_128().hashBytes( ( byte[] ) key ).asLong();
+
+        return Hashing.murmur3_128().hashString( String.valueOf( key ), UTF_8 ).asLong();
+    }
+
+    public long getInsertedRows() {
+        return shards.stream().mapToLong( BatchInserter::getInsertedRows ).sum();
+    }
+
+    public long getFailedRows() {
+        return shards.stream().mapToLong( BatchInserter::getFailedRows ).sum();
+    }
+
+    public long getBufferedBytes() {
+        return shards.stream().mapToLong( BatchInserter::getBufferedBytes ).sum();
+    }
+}
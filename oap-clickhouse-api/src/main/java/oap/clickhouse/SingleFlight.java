@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * One load per key at a time: a caller asking for a key that is being loaded waits for that load's result
+ * (or failure) instead of starting its own.
+ */
+final class SingleFlight<T> {
+    private final ConcurrentHashMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param timeout how long to wait for another caller's load, 0 - no limit
+     */
+    T get( String key, long timeout, Supplier<T> load ) {
+        var future = new CompletableFuture<T>();
+        var running = inFlight.putIfAbsent( key, future );
+        if( running != null ) {
+            ClickhouseMetrics.coalesced();
+            waiting.incrementAndGet();
+            try {
+                return await( running, timeout );
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        try {
+            var result = load.get();
+            future.complete( result );
+            return result;
+        } catch( RuntimeException | Error e ) {
+            future.completeExceptionally( e );
+            throw e;
+        } finally {
+            inFlight.remove( key, future );
+        }
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return callers waiting for another caller's load
+     */
+    int waiting() {
+        return waiting.get();
+    }
+
+    private static <T> T await( CompletableFuture<T> future, long timeout ) {
+        try {
+            return timeout > 0 ? future.get( timeout, MILLISECONDS ) : future.get();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new ClickhouseException( e );
+        } catch( TimeoutException e ) {
+            throw new ClickhouseException( e );
+        } catch( ExecutionException e ) {
+            if( e.getCause() instanceof ClickhouseException ) throw ( ClickhouseException ) e.getCause();
+            throw new ClickhouseException( e.getCause() );
+        }
+    }
+}
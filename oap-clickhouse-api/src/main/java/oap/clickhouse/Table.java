@@ -37,7 +37,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import static java.util.Collections.emptyMap;
@@ -49,9 +48,7 @@ import static oap.util.Collectors.toLinkedHashMap;
 @Slf4j
 public class Table extends AbstractTable {
     public static final Pattern INDEX_GRANULARITY_PATTERN = Pattern.compile( "index_granularity\\s*=\\s*(\\d+)" );
-    private static final String CREATE_TABLE_QUERY =
-        "SELECT create_table_query FROM system.tables WHERE database = '${DATABASE}' AND name = '${TABLE}' FORMAT TabSeparated";
-    private static final String TRUNCATE_TABLE_SQL = "TRUNCATE TABLE IF EXISTS ${DATABASE}.${TABLE}";
+    private static final QueryTemplate TRUNCATE_TABLE_SQL = QueryTemplate.parse( "TRUNCATE TABLE IF EXISTS ${DATABASE}.${TABLE}" );
     private static final Pattern TTL_PATTERN = Pattern.compile( "\\sTTL\\s([^\\s]+)\\s\\+\\s[^(]+\\((\\d+)\\)" );
     private static final Pattern INDEX_PATTERN = Pattern.compile( "INDEX\\s+([^\\s(]+)\\s+\\(?(.+?(?=\\)?\\s*TYPE))\\)?\\s*TYPE\\s+([^\\s)]+\\)?)\\s*GRANULARITY\\s+(\\d+)" );
 
@@ -64,19 +61,14 @@ public class Table extends AbstractTable {
     }
 
     public TtlInfo getTtlField() throws ClickhouseException {
-        try {
-            var getTtlField = ( TtlInfo ) cache.get( "getTtlField", () -> {
-                var createTableSql = getCreateTableSql();
-
-                var matcher = TTL_PATTERN.matcher( createTableSql );
-                if( matcher.find() ) return new TtlInfo( matcher.group( 1 ), Integer.parseInt( matcher.group( 2 ) ) );
-
-                return TtlInfo.NULL;
-            } );
-            return getTtlField == TtlInfo.NULL ? null : getTtlField;
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        var schema = getSchema();
+        if( schema == null ) return null;
+
+        // system tables have no structured TTL, engine_full is the engine clause only
+        var matcher = TTL_PATTERN.matcher( schema.engineFull );
+        if( matcher.find() ) return new TtlInfo( matcher.group( 1 ), Integer.parseInt( matcher.group( 2 ) ) );
+
+        return null;
     }
 
     // TODO Lists.moveItem
@@ -88,30 +80,14 @@ public class Table extends AbstractTable {
         }
     }
 
-    private String getCreateTableSql() throws ExecutionException {
-        var createTableSql = ( String ) cache.get( "createTableSql", () -> {
-            var sql = buildQuery( CREATE_TABLE_QUERY, emptyMap() );
-            log.trace( "sql = {}", sql );
-            var lines = database.client.getLines( sql );
-            if( lines.isEmpty() ) return "";
-            return lines.get( 0 );
-        } );
-        return createTableSql;
-    }
-
     public int getIndexGranularity() throws ClickhouseException {
-        try {
-            return ( Integer ) cache.get( "getIndexGranularity", () -> {
-                var createTableSql = getCreateTableSql();
+        var schema = getSchema();
+        if( schema == null ) return -1;
 
-                var matcher = INDEX_GRANULARITY_PATTERN.matcher( createTableSql );
-                if( matcher.find() ) return Integer.parseInt( matcher.group( 1 ) );
+        var matcher = INDEX_GRANULARITY_PATTERN.matcher( schema.engineFull );
+        if( matcher.find() ) return Integer.parseInt( matcher.group( 1 ) );
 
-                return -1;
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        return -1;
     }
 
     boolean upgrade( List<ConfigField> fields,
@@ -184,7 +160,6 @@ public class Table extends AbstractTable {
                     modified = true;
                 }
 
-                refresh();
                 tableIndexes = getIndexes();
                 log.debug( "indexes = {}", tableIndexes );
                 for( var index : indexes ) {
@@ -315,49 +290,33 @@ public class Table extends AbstractTable {
     }
 
     public boolean isMemoryEngine() throws ClickhouseException {
-        try {
-            return ( Boolean ) cache.get( "isMemoryEngine", () -> {
-                var createTableSql = getCreateTableSql();
-
-                var memoryEngine =
-                    Pattern.compile( "\\s*Engine\\s*=\\s*memory", Pattern.CASE_INSENSITIVE ).matcher( createTableSql ).find()
-                        ? 1 : 0;
-
-                return memoryEngine == 1;
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
-        }
+        var schema = getSchema();
+        return schema != null && "Memory".equalsIgnoreCase( schema.engine );
     }
 
     public void truncate() throws ClickhouseException {
         database.client.execute( buildQuery( TRUNCATE_TABLE_SQL, emptyMap() ), true );
     }
 
-    @SuppressWarnings( "unchecked" )
     public List<ConfigIndex> getIndexes() throws ClickhouseException {
-        try {
-            return ( List<ConfigIndex> ) cache.get( "getIndexes", () -> {
-                var createTableSql = getCreateTableSql();
+        var schema = getSchema();
+        if( schema == null ) return List.of();
+        if( schema.indexes != null ) return new ArrayList<>( schema.indexes );
 
-                var res = new ArrayList<ConfigIndex>();
+        var res = new ArrayList<ConfigIndex>();
 
-                var matcher = INDEX_PATTERN.matcher( createTableSql );
-                while( matcher.find() ) {
-                    var name = matcher.group( 1 );
-                    var fieldsStr = matcher.group( 2 );
-                    var fields = List.of( fieldsStr.trim().split( "\\s*,\\s*" ) );
-                    var type = matcher.group( 3 );
-                    var granularity = matcher.group( 4 );
+        var matcher = INDEX_PATTERN.matcher( schema.createTableQuery );
+        while( matcher.find() ) {
+            var name = matcher.group( 1 );
+            var fieldsStr = matcher.group( 2 );
+            var fields = List.of( fieldsStr.trim().split( "\\s*,\\s*" ) );
+            var type = matcher.group( 3 );
+            var granularity = matcher.group( 4 );
 
-                    res.add( ConfigIndex.index( name, fields, type, Integer.parseInt( granularity ) ) );
-                }
-
-                return res;
-            } );
-        } catch( ExecutionException e ) {
-            throw getException( e );
+            res.add( ConfigIndex.index( name, fields, type, Integer.parseInt( granularity ) ) );
         }
+
+        return res;
     }
 
     @ToString
@@ -0,0 +1,347 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A reusable cursor over TabSeparated lines, read straight from the response bytes. Fields are split on first access
+ * and stay escaped in the buffer: numbers are parsed in place and text is unescaped only when asked for,
+ * into a per-column reusable {@link CharSequence}. Everything returned is valid until the next {@link #next()}.
+ * <p>
+ * Not thread safe.
+ */
+public final class TsvCursor implements Closeable {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 64;
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+
+    private final InputStream in;
+    private final Charset charset;
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int fields = -1;
+    private StringBuilder[] text = new StringBuilder[16];
+    private long lineNumber = -1;
+
+    public TsvCursor( InputStream in ) {
+        this( in, UTF_8 );
+    }
+
+    public TsvCursor( InputStream in, Charset charset ) {
+        this.in = in;
+        this.charset = charset;
+        var pooled = pool.poll();
+        this.buffer = pooled != null ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * @return false once there are no more lines
+     */
+    public boolean next() throws IOException {
+        fields = -1;
+        int scan = position;
+        while( true ) {
+            for( int i = scan; i < limit; i++ )
+                if( buffer[i] == '\n' ) {
+                    setLine( position, i );
+                    position = i + 1;
+                    return true;
+                }
+
+            if( eof ) {
+                if( position == limit ) return false;
+                setLine( position, limit );
+                position = limit;
+                return true;
+            }
+
+            scan = limit - position;
+            fill();
+        }
+    }
+
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * The raw line, as {@link java.io.BufferedReader#readLine()} would return it.
+     */
+    public String line() {
+        return new String( buffer, lineStart, lineEnd - lineStart, charset );
+    }
+
+    public int fields() {
+        split();
+        return fields;
+    }
+
+    /**
+     * The buffer backing the current line; the escaped field spans {@link #start(int)} to {@link #end(int)}.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int start( int field ) {
+        split();
+        return starts[field];
+    }
+
+    public int end( int field ) {
+        split();
+        return ends[field];
+    }
+
+    public boolean isNull( int field ) {
+        split();
+        return ends[field] - starts[field] == 2 && buffer[starts[field]] == '\\' && buffer[starts[field] + 1] == 'N';
+    }
+
+    public boolean isEmpty( int field ) {
+        split();
+        return ends[field] == starts[field];
+    }
+
+    /**
+     * Compares the escaped field with ASCII {@code value}, without decoding.
+     */
+    public boolean equalsAscii( int field, String value ) {
+        split();
+        int start = starts[field];
+        if( ends[field] - start != value.length() ) return false;
+        for( int i = 0; i < value.length(); i++ ) if( buffer[start + i] != value.charAt( i ) ) return false;
+        return true;
+    }
+
+    /**
+     * @throws NumberFormatException also for values out of the long range, such as UInt64 above Long.MAX_VALUE,
+     *                               which {@link #getString(int)} reads instead
+     */
+    public long getLong( int field ) {
+        split();
+        int i = starts[field];
+        int end = ends[field];
+        if( i == end ) throw new NumberFormatException( "empty field " + field );
+
+        boolean negative = buffer[i] == '-';
+        if( negative || buffer[i] == '+' ) i++;
+        if( i == end ) throw new NumberFormatException( "no digits in field " + field );
+
+        // accumulated negatively, so that Long.MIN_VALUE fits
+        long value = 0;
+        for( ; i < end; i++ ) {
+            int d = buffer[i] - '0';
+            if( d < 0 || d > 9 ) throw new NumberFormatException( "field " + field + ": " + getString( field ) );
+            if( value < Long.MIN_VALUE / 10 || value * 10 < Long.MIN_VALUE + d ) throw outOfRange( field );
+            value = value * 10 - d;
+        }
+        if( negative ) return value;
+        if( value == Long.MIN_VALUE ) throw outOfRange( field );
+        return -value;
+    }
+
+    private NumberFormatException outOfRange( int field ) {
+        return new NumberFormatException( "field " + field + ": " + getString( field ) + " is out of the long range" );
+    }
+
+    public int getInt( int field ) {
+        return ( int ) getLong( field );
+    }
+
+    /**
+     * Plain decimals of up to 15 digits are parsed in place (exactly, as both parts fit a double); ClickHouse's
+     * {@code nan}, {@code inf} and {@code -inf} are mapped, anything else goes through {@link Double#parseDouble(String)}.
+     */
+    public double getDouble( int field ) {
+        split();
+        int i = starts[field];
+        int end = ends[field];
+
+        boolean negative = i < end && buffer[i] == '-';
+        if( negative ) i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        for( ; i < end; i++ ) {
+            byte b = buffer[i];
+            if( b == '.' && !dot ) dot = true;
+            else if( b >= '0' && b <= '9' && digits < 15 ) {
+                mantissa = mantissa * 10 + ( b - '0' );
+                digits++;
+                if( dot ) scale++;
+            } else return parseDouble( getString( field ) );
+        }
+        if( digits == 0 ) return parseDouble( getString( field ) );
+
+        double value = scale == 0 ? mantissa : mantissa / POWERS[scale];
+        return negative ? -value : value;
+    }
+
+    private static double parseDouble( String value ) {
+        return switch( value ) {
+            case "nan", "-nan", "+nan" -> Double.NaN;
+            case "inf", "+inf" -> Double.POSITIVE_INFINITY;
+            case "-inf" -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble( value );
+        };
+    }
+
+    /**
+     * The unescaped field, decoded into a reusable buffer of this column.
+     */
+    public CharSequence getCharSequence( int field ) {
+        split();
+        if( field >= text.length ) text = Arrays.copyOf( text, Math.max( field + 1, text.length * 2 ) );
+        var sb = text[field];
+        if( sb == null ) sb = text[field] = new StringBuilder();
+        sb.setLength( 0 );
+
+        unescape( starts[field], ends[field], sb );
+        return sb;
+    }
+
+    public String getString( int field ) {
+        split();
+        int start = starts[field];
+        int end = ends[field];
+        for( int i = start; i < end; i++ )
+            if( buffer[i] == '\\' ) return getCharSequence( field ).toString();
+        return new String( buffer, start, end - start, charset );
+    }
+
+    /**
+     * The field as is, for TabSeparatedRaw.
+     */
+    public String getRawString( int field ) {
+        split();
+        return new String( buffer, starts[field], ends[field] - starts[field], charset );
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     */
+    @Override
+    public void close() {
+        if( buffer != null && buffer.length == BUFFER_SIZE && pool.size() < POOL_SIZE ) pool.offer( buffer );
+        buffer = null;
+    }
+
+    private void setLine( int start, int end ) {
+        lineStart = start;
+        lineEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+        lineNumber++;
+    }
+
+    private void fill() throws IOException {
+        if( position > 0 ) {
+            System.arraycopy( buffer, position, buffer, 0, limit - position );
+            limit -= position;
+            position = 0;
+        }
+        if( limit == buffer.length ) buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+
+        int n = in.read( buffer, limit, buffer.length - limit );
+        if( n < 0 ) eof = true;
+        else limit += n;
+    }
+
+    private void split() {
+        if( fields >= 0 ) return;
+
+        int count = 0;
+        int start = lineStart;
+        for( int i = lineStart; i <= lineEnd; i++ )
+            if( i == lineEnd || buffer[i] == '\t' ) {
+                if( count == starts.length ) {
+                    starts = Arrays.copyOf( starts, count * 2 );
+                    ends = Arrays.copyOf( ends, count * 2 );
+                }
+                starts[count] = start;
+                ends[count] = i;
+                count++;
+                start = i + 1;
+            }
+        fields = count;
+    }
+
+    private void unescape( int start, int end, StringBuilder sb ) {
+        int i = start;
+        while( i < end ) {
+            int b = buffer[i] & 0xFF;
+            if( b == '\\' && i + 1 < end ) {
+                sb.append( switch( buffer[i + 1] ) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case 'b' -> '\b';
+                    case 'f' -> '\f';
+                    case '0' -> '\0';
+                    case 'a' -> '\u0007';
+                    case 'v' -> '\u000B';
+                    default -> ( char ) ( buffer[i + 1] & 0xFF );
+                } );
+                i += 2;
+            } else if( b < 0x80 ) {
+                sb.append( ( char ) b );
+                i++;
+            } else if( charset != UTF_8 ) {
+                int j = i;
+                while( j < end && buffer[j] != '\\' ) j++;
+                sb.append( new String( buffer, i, j - i, charset ) );
+                i = j;
+            } else i = appendUtf8( b, i, end, sb );
+        }
+    }
+
+    private int appendUtf8( int b, int i, int end, StringBuilder sb ) {
+        int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        if( length == 1 || i + length > end ) {
+            sb.append( '\uFFFD' );
+            return i + 1;
+        }
+
+        int cp = b & ( 0x3F >> ( length - 1 ) );
+        for( int k = 1; k < length; k++ ) cp = cp << 6 | buffer[i + k] & 0x3F;
+        sb.appendCodePoint( Character.isValidCodePoint( cp ) ? cp : 0xFFFD );
+        return i + length;
+    }
+}
@@ -33,7 +33,7 @@ import static java.util.stream.Collectors.joining;
 
 @Slf4j
 public class View extends AbstractTable {
-    private static final String CREATE_VIEW_QUERY = "CREATE ${MATERIALIZED} VIEW ${DATABASE}.${TABLE}${TO} ${POPULATE} AS SELECT ${FIELDS}${AGGREGATES} FROM ${DATABASE}.${FROM_TABLE}${WHERE} ${GROUP_BY}";
+    private static final QueryTemplate CREATE_VIEW_QUERY = QueryTemplate.parse( "CREATE ${MATERIALIZED} VIEW ${DATABASE}.${TABLE}${TO} ${POPULATE} AS SELECT ${FIELDS}${AGGREGATES} FROM ${DATABASE}.${FROM_TABLE}${WHERE} ${GROUP_BY}" );
 
     public View( Database database, String name ) {
         super( database, name );
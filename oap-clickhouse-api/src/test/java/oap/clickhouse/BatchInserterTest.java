@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BatchInserterTest {
+    @Test
+    public void testRows() {
+        var client = new MockClickhouseClient();
+        var inserter = new BatchInserter( client );
+        inserter.maxRows = 3;
+        inserter.start();
+
+        var rows = "1\n2\n3\n".getBytes();
+        inserter.insert( "T", rows, 0, rows.length, 3 );
+        inserter.insert( "T", "4" );
+        inserter.stop();
+
+        assertThat( client.puts ).hasSize( 2 );
+        assertThat( inserter.getInsertedRows() ).isEqualTo( 4 );
+    }
+
+    @Test
+    public void testNotRunning() {
+        var inserter = new BatchInserter( new MockClickhouseClient() );
+        assertThatThrownBy( () -> inserter.insert( "T", "1" ) ).isInstanceOf( ClickhouseException.class );
+
+        inserter.start();
+        inserter.insert( "T", "1" );
+        inserter.stop();
+        assertThatThrownBy( () -> inserter.insert( "T", "2" ) ).isInstanceOf( ClickhouseException.class );
+        inserter.flush();
+
+        assertThat( inserter.getBufferedBytes() ).isZero();
+        assertThat( inserter.getInFlight() ).isZero();
+        assertThat( inserter.getInsertedRows() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testStopWhileInserting() throws InterruptedException {
+        var inserter = new BatchInserter( new MockClickhouseClient() );
+        inserter.start();
+
+        var accepted = new AtomicLong();
+        var threads = new ArrayList<Thread>();
+        for( var i = 0; i < 4; i++ ) {
+            var thread = new Thread( () -> {
+                try {
+                    while( true ) {
+                        inserter.insert( "T", "1" );
+                        accepted.incrementAndGet();
+                    }
+                } catch( ClickhouseException e ) {
+                    // stopped
+                }
+            } );
+            thread.start();
+            threads.add( thread );
+        }
+        Thread.sleep( 50 );
+        inserter.stop();
+        for( var thread : threads ) thread.join();
+
+        assertThat( inserter.getInsertedRows() ).isEqualTo( accepted.get() );
+        assertThat( inserter.getBufferedBytes() ).isZero();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CityHashTest {
+    @DataProvider
+    public Object[][] vectors() {
+        return new Object[][] {
+            { 0, 0x3df09dfc64c09a2bL, 0x3cb540c392e51e29L },
+            { 3, 0xe407deda7bb0f294L, 0x0a3a0d146e27f1bdL },
+            { 7, 0xd7ba2459ab7c2913L, 0x53dd430b513ca460L },
+            { 12, 0x8450aab120e0ccdcL, 0x8a990d2011469548L },
+            { 16, 0x3f3a3275564b7f48L, 0xb48a2a7a16bac60bL },
+            { 100, 0x49c189a397bdadeeL, 0x0e8155bdfd58d3d3L },
+            { 300, 0x0ad7d1f77d7e62c5L, 0x0702d3372375ccf2L }
+        };
+    }
+
+    @Test( dataProvider = "vectors" )
+    public void testCityHash128( int length, long low, long high ) {
+        var bytes = new byte[length + 2];
+        for( int i = 0; i < length; i++ ) bytes[i + 1] = ( byte ) ( i * 31 + 7 );
+
+        assertThat( CityHash.cityHash128( bytes, 1, length ) ).containsExactly( low, high );
+    }
+}
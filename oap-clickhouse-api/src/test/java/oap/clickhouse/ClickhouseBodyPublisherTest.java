@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ClickhouseBodyPublisherTest {
+    @Test
+    public void testNonPositiveRequest() {
+        var publisher = new ClickhouseBodyPublisher( 4 );
+        var errors = new ArrayList<Throwable>();
+        publisher.subscribe( new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe( Flow.Subscription subscription ) {
+                subscription.request( 0 );
+                subscription.request( 0 );
+            }
+
+            @Override
+            public void onNext( ByteBuffer item ) {}
+
+            @Override
+            public void onError( Throwable throwable ) {
+                errors.add( throwable );
+            }
+
+            @Override
+            public void onComplete() {}
+        } );
+
+        assertThat( errors ).hasSize( 1 ).first().isInstanceOf( IllegalArgumentException.class );
+        assertThatThrownBy( () -> publisher.write( new byte[8], 0, 8 ) )
+            .isInstanceOf( IOException.class )
+            .hasCauseInstanceOf( IllegalArgumentException.class );
+    }
+}
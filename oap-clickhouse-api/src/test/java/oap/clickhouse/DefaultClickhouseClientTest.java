@@ -24,6 +24,8 @@
 
 package oap.clickhouse;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import oap.system.Env;
 import oap.testng.Teamcity;
 import oap.util.Dates;
@@ -34,6 +36,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -42,7 +46,10 @@ import static oap.clickhouse.ConfigField.build;
 import static oap.clickhouse.ConfigField.buildFixedArrayString;
 import static oap.clickhouse.Engine.MergeTree;
 import static oap.clickhouse.FieldType.DATE;
+import static oap.clickhouse.FieldType.DOUBLE;
+import static oap.clickhouse.FieldType.LONG;
 import static oap.clickhouse.FieldType.STRING;
+import static oap.clickhouse.FieldType.STRING_ARRAY;
 import static oap.testng.Asserts.assertString;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
@@ -146,6 +153,284 @@ public class DefaultClickhouseClientTest {
         assertThat( count ).isEqualTo( 3 );
     }
 
+    @Test
+    public void testDeadline() {
+        var start = System.currentTimeMillis();
+        assertThatThrownBy( () -> clickHouseClient.getLines( "SELECT sleepEachRow(1) FROM numbers(10)", false, 1000 ) )
+            .isInstanceOf( ClickhouseException.class );
+        assertThat( System.currentTimeMillis() - start ).isLessThan( 5000 );
+    }
+
+    @Test
+    public void testSettings() {
+        clickHouseClient.createDatabase();
+        clickHouseClient.settings = Map.of( "max_threads", 3 );
+        clickHouseClient.profiles = Map.of( "reporting", Map.of( "max_threads", 2, "optimize_read_in_order", false ) );
+
+        assertThat( clickHouseClient.getLines( "SELECT getSetting('max_threads')" ) ).containsExactly( "3" );
+        var reporting = clickHouseClient.withProfile( "reporting" );
+        assertThat( reporting.getLines( "SELECT getSetting('max_threads'), getSetting('optimize_read_in_order')" ) )
+            .containsExactly( "2\t0" );
+        assertThat( reporting.withSettings( Map.of( "max_threads", 1 ) ).getLines( "SELECT getSetting('max_threads')" ) )
+            .containsExactly( "1" );
+        assertThatThrownBy( () -> clickHouseClient.withProfile( "unknown" ) ).isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void testStats() {
+        clickHouseClient.createDatabase();
+        clickHouseClient.execute( "CREATE TABLE STATS (ID String) ENGINE MergeTree ORDER BY ID", true );
+
+        // progress headers arrive as the query runs on a pooled exchange
+        clickHouseClient.transport = Transport.POOLED;
+        clickHouseClient.progressInterval = 10;
+        var stats = new ArrayList<QueryStats>();
+        var progress = new ArrayList<QueryStats>();
+        var client = clickHouseClient.withStats( stats::add ).withProgress( progress::add );
+        client.insert( "STATS", DataFormat.TabSeparated, "1\n2\n3\n".getBytes(), "stats-1" );
+        assertThat( stats ).hasSize( 1 );
+        assertThat( stats.get( 0 ).queryId ).isEqualTo( "stats-1-0" );
+        assertThat( stats.get( 0 ).writtenRows ).isEqualTo( 3 );
+
+        client.withSettings( Map.of( "wait_end_of_query", 1 ) ).getLines( "SELECT count() FROM STATS" );
+        assertThat( stats ).hasSize( 2 );
+        assertThat( stats.get( 1 ).readRows ).isEqualTo( 3 );
+
+        progress.clear();
+        client.withSettings( Map.of( "wait_end_of_query", 1, "max_block_size", 10000 ) )
+            .getLines( "SELECT count() FROM numbers( 20000000 ) WHERE sipHash64( number ) % 7 = 0" );
+        assertThat( progress ).isNotEmpty();
+        for( var i = 1; i < progress.size(); i++ )
+            assertThat( progress.get( i ).readRows ).isGreaterThanOrEqualTo( progress.get( i - 1 ).readRows );
+        assertThat( progress.get( progress.size() - 1 ).readRows ).isPositive();
+    }
+
+    @Test
+    public void testParams() {
+        clickHouseClient.createDatabase();
+        clickHouseClient.execute( "CREATE TABLE PARAMS (ID String, N UInt32) ENGINE MergeTree ORDER BY ID", true );
+        clickHouseClient.insert( "PARAMS", DataFormat.TabSeparated, "a'b\t1\nc\\\\d\t2\ne\t3\n".getBytes(), "params-1" );
+
+        assertThat( clickHouseClient.withParams( Map.of( "id", "a'b" ) ).getLines( "SELECT N FROM PARAMS WHERE ID = {id:String}" ) )
+            .containsExactly( "1" );
+        assertThat( clickHouseClient.withParams( Map.of( "id", "c\\d" ) ).getLines( "SELECT N FROM PARAMS WHERE ID = {id:String}" ) )
+            .containsExactly( "2" );
+        assertThat( clickHouseClient.withParams( Map.of( "ids", List.of( "a'b", "e" ), "min", 2 ) )
+            .getLines( "SELECT N FROM PARAMS WHERE has({ids:Array(String)}, ID) AND N >= {min:UInt32}" ) )
+            .containsExactly( "3" );
+    }
+
+    @Test
+    public void testMetrics() {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry( registry );
+        try {
+            clickHouseClient.createDatabase();
+            clickHouseClient.execute( "CREATE TABLE METRICS (ID String) ENGINE MergeTree ORDER BY ID", true );
+            clickHouseClient.insert( "METRICS", DataFormat.TabSeparated, "1\n2\n".getBytes(), "metrics-1" );
+            assertThatThrownBy( () -> clickHouseClient.getLines( "SELECT * FROM UNKNOWN_TABLE" ) );
+
+            assertThat( registry.find( "clickhouse.insert.rows" ).tag( "table", "METRICS" ).counter().count() ).isEqualTo( 2 );
+            assertThat( registry.find( "clickhouse.requests" ).tag( "type", "insert" ).tag( "outcome", "success" ).timer().count() ).isEqualTo( 1 );
+            assertThat( registry.find( "clickhouse.requests" ).tag( "type", "query" ).tag( "outcome", "error" ).timer().count() ).isEqualTo( 1 );
+            assertThat( registry.find( "clickhouse.errors" ).tag( "code", "60" ).counter().count() ).isEqualTo( 1 );
+            assertThat( registry.find( "clickhouse.requests.in_flight" ).gauge().value() ).isEqualTo( 0 );
+        } finally {
+            Metrics.removeRegistry( registry );
+        }
+    }
+
+    @Test
+    public void testInsertDeduplication() {
+        clickHouseClient.createDatabase();
+        clickHouseClient.execute( "CREATE TABLE DEDUP (ID String) ENGINE MergeTree ORDER BY ID "
+            + "SETTINGS non_replicated_deduplication_window = 100", true );
+
+        var data = "1\n2\n".getBytes();
+        clickHouseClient.insert( "DEDUP", DataFormat.TabSeparated, data, "batch-1" );
+        clickHouseClient.insert( "DEDUP", DataFormat.TabSeparated, data, "batch-1" );
+        clickHouseClient.insert( "DEDUP", DataFormat.TabSeparated, data, "batch-2" );
+
+        assertThat( clickHouseClient.getLines( "SELECT count() FROM DEDUP" ) ).containsExactly( "4" );
+    }
+
+    @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
+    public void testPutHttpClientTransport() throws Exception {
+        testCreateDatabaseAndTable();
+
+        clickHouseClient.transport = Transport.HTTP_CLIENT;
+
+        try( var out = clickHouseClient.put( "TEST", DataFormat.TabSeparated ) ) {
+            out.write( "11\t2017-01-01\n".getBytes() );
+            out.write( "12\t2017-01-01".getBytes() );
+        }
+
+        var stream = clickHouseClient.putAsync( "TEST", DataFormat.TabSeparated ).toStream();
+        stream.getOutputStream().write( "13\t2017-01-01\n".getBytes() );
+        stream.closeAsync().get();
+
+        var lines = clickHouseClient.getLines( "SELECT * FROM TEST" );
+        assertThat( lines ).containsOnlyOnce( "11\t2017-01-01", "12\t2017-01-01", "13\t2017-01-01" );
+    }
+
+    @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
+    public void testPooledTransport() throws IOException {
+        testCreateDatabaseAndTable();
+
+        var client = new DefaultClickhouseClient( HOST, PORT, db, TIMEOUT, TIMEOUT );
+        client.transport = Transport.POOLED;
+        client.maxConnectionsPerHost = 2;
+        client.start();
+        try {
+            assertThat( client.ping() ).isTrue();
+
+            try( var out = client.put( "TEST", DataFormat.TabSeparated ) ) {
+                out.write( "11\t2017-01-01\n".getBytes() );
+            }
+            for( var i = 0; i < 10; i++ )
+                assertThat( client.useDatabase( "system" ).getLines( "SELECT 1" ) ).containsExactly( "1" );
+
+            assertThat( client.getLines( "SELECT * FROM TEST" ) ).containsExactly( "11\t2017-01-01" );
+            assertThat( client.pool().getOpenConnections() ).isLessThanOrEqualTo( 2 );
+            assertThat( client.pool().getActiveConnections() ).isZero();
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
+    public void testHttpCompression() throws IOException {
+        testCreateDatabaseAndTable();
+
+        for( var compression : HttpCompression.values() ) {
+            clickHouseClient.compression = compression;
+
+            try( var out = clickHouseClient.put( "TEST", DataFormat.TabSeparated ) ) {
+                out.write( ( compression + "\t2017-01-01\n" ).getBytes() );
+            }
+            assertThat( clickHouseClient.getLines( "SELECT ID FROM TEST WHERE ID = '" + compression + "'" ) )
+                .containsExactly( compression.name() );
+        }
+    }
+
+    @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
+    public void testNativeCompression() throws IOException {
+        testCreateDatabaseAndTable();
+
+        clickHouseClient.chunkSize = 16;
+        for( var compression : NativeCompression.values() ) {
+            clickHouseClient.nativeCompression = compression;
+
+            try( var out = clickHouseClient.put( "TEST", DataFormat.TabSeparated ) ) {
+                for( int i = 0; i < 10; i++ )
+                    out.write( ( compression + "_" + i + "\t2017-01-01\n" ).getBytes() );
+            }
+            assertThat( clickHouseClient.getLines( "SELECT count() FROM TEST WHERE ID LIKE '" + compression + "_%'" ) )
+                .containsExactly( "10" );
+        }
+    }
+
+    @Test
+    public void testPutRowBinary() throws IOException {
+        clickHouseClient.createDatabase();
+        var fields = List.of(
+            build( "ID", STRING ).withDefaultValue( "" ),
+            build( "PARTITIONING_DATE", DATE ).withDefaultValue( "2019-09-23" ),
+            build( "COUNT", LONG ).withDefaultValue( 0 ),
+            build( "PRICE", DOUBLE ).withDefaultValue( 0 ),
+            build( "TAGS", STRING_ARRAY ).withDefaultValue( List.of() ) );
+        database.upgrade( List.of( new TableInfo( "TEST", fields, List.of(), TABLE_ENGINE, Map.of() ) ), List.of(), Dates.m( 10 ) );
+
+        try( var writer = clickHouseClient.putRowBinary( "TEST", fields ) ) {
+            for( int i = 0; i < 3; i++ ) {
+                writer.writeString( "id" + i ).writeDateTime( 1483228800000L ).writeLong( i ).writeDouble( i / 2.0 )
+                    .writeArray( i );
+                for( int t = 0; t < i; t++ ) writer.writeString( "t" + t );
+                writer.endRow();
+            }
+        }
+
+        assertThat( clickHouseClient.getLines( "SELECT * FROM TEST ORDER BY ID" ) ).containsExactly(
+            "id0\t2017-01-01\t0\t0\t[]",
+            "id1\t2017-01-01\t1\t0.5\t['t0']",
+            "id2\t2017-01-01\t2\t1\t['t0','t1']" );
+    }
+
+    @Test
+    public void testPutNative() throws IOException {
+        clickHouseClient.createDatabase();
+        var table = new TableInfo( "TEST", List.of(
+            build( "ID", STRING, true ).withDefaultValue( "" ),
+            build( "PARTITIONING_DATE", DATE ).withDefaultValue( "2019-09-23" ),
+            build( "COUNT", LONG ).withDefaultValue( 0 ),
+            build( "TAGS", STRING_ARRAY ).withDefaultValue( List.of() ) ), List.of(), TABLE_ENGINE, Map.of() );
+        database.upgrade( List.of( table ), List.of(), Dates.m( 10 ) );
+
+        try( var writer = clickHouseClient.putNative( table ) ) {
+            for( int i = 0; i < 3; i++ ) {
+                writer.writeString( "id" + i ).writeDateTime( 1483228800000L ).writeLong( i ).writeArray( i );
+                for( int t = 0; t < i; t++ ) writer.writeString( "t" + t );
+                writer.endRow();
+            }
+        }
+
+        assertThat( clickHouseClient.getLines( "SELECT * FROM TEST ORDER BY ID" ) ).containsExactly(
+            "id0\t2017-01-01\t0\t[]",
+            "id1\t2017-01-01\t1\t['t0']",
+            "id2\t2017-01-01\t2\t['t0','t1']" );
+    }
+
+    @Test
+    public void testGetRowBinary() {
+        var rows = new ArrayList<String>();
+        var count = clickHouseClient.getRowBinary( "SELECT toInt32(number) - 1 AS I, number / 2 AS D, toString(number) AS S, "
+            + "range(number) AS A, toDateTime('2017-01-01 00:00:00', 'UTC') AS T, "
+            + "if(number = 1, NULL, toNullable(number)) AS N FROM system.numbers LIMIT 3", row ->
+            rows.add( row.getInt( 0 ) + "," + row.getDouble( 1 ) + "," + row.getString( 2 ) + ","
+                + Arrays.toString( row.getLongArray( 3 ) ) + "," + row.getMillis( 4 ) + "," + ( row.isNull( 5 ) ? "null" : row.getLong( 5 ) ) ) );
+
+        assertThat( count ).isEqualTo( 3 );
+        assertThat( rows ).containsExactly(
+            "-1,0.0,0,[],1483228800000,0",
+            "0,0.5,1,[0],1483228800000,null",
+            "1,1.0,2,[0, 1],1483228800000,2" );
+
+        var numbers = new ArrayList<Long>();
+        clickHouseClient.getRowBinary( "SELECT number FROM system.numbers LIMIT 2 format TabSeparated;", row -> numbers.add( row.getLong( 0 ) ) );
+        assertThat( numbers ).containsExactly( 0L, 1L );
+    }
+
+    @Test
+    public void testStream() {
+        try( var numbers = clickHouseClient.stream( "SELECT number FROM system.numbers LIMIT 100000000", row -> row.getLong( 0 ) ) ) {
+            assertThat( numbers.limit( 3 ) ).containsExactly( 0L, 1L, 2L );
+        }
+
+        try( var lines = clickHouseClient.stream( "SELECT number FROM system.numbers LIMIT 1000" ) ) {
+            assertThat( lines.count() ).isEqualTo( 1000 );
+        }
+        assertThat( clickHouseClient.getLines( "SELECT 1" ) ).containsExactly( "1" );
+    }
+
+    @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
+    public void testBatchInserter() {
+        testCreateDatabaseAndTable();
+
+        var inserter = new BatchInserter( clickHouseClient );
+        inserter.maxRows = 4;
+        inserter.concurrency = 2;
+        inserter.start();
+        try {
+            for( int i = 0; i < 10; i++ ) inserter.insert( "TEST", i + "\t2017-01-01" );
+        } finally {
+            inserter.stop();
+        }
+
+        assertThat( inserter.getInsertedRows() ).isEqualTo( 10 );
+        assertThat( inserter.getBufferedBytes() ).isZero();
+        assertThat( clickHouseClient.getLines( "SELECT count() FROM TEST" ) ).containsExactly( "10" );
+    }
+
     @Test( dependsOnMethods = "testCreateDatabaseAndTable" )
     public void testCSVWithNames() throws IOException {
         testCreateDatabaseAndTable();
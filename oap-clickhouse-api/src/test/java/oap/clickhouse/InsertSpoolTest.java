@@ -0,0 +1,191 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static oap.util.Dates.h;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InsertSpoolTest {
+    @Test
+    public void testReplayAfterFailureAndRestart() throws IOException {
+        var directory = Files.createTempDirectory( "spool" );
+        try {
+            var client = new RecordingClient();
+            client.down = true;
+
+            var spool = spool( client, directory );
+            for( var i = 0; i < 100; i++ ) spool.append( i % 2 == 0 ? "a" : "b", ( i + "\n" ).getBytes( UTF_8 ) );
+            assertThat( spool.getSegments() ).isGreaterThan( 2 );
+
+            spool.replay();
+            assertThat( client.inserted( "a" ) ).isEmpty();
+            spool.stop();
+
+            client.down = false;
+            var restarted = spool( client, directory );
+            restarted.replay();
+
+            var expected = new StringBuilder();
+            for( var i = 0; i < 100; i += 2 ) expected.append( i ).append( '\n' );
+            assertThat( client.inserted( "a" ) ).isEqualTo( expected.toString() );
+            assertThat( client.inserted( "b" ) ).startsWith( "1\n3\n" ).endsWith( "97\n99\n" );
+            assertThat( restarted.getSegments() ).isZero();
+            assertThat( restarted.getPendingBytes() ).isZero();
+            assertThat( restarted.getReplayedRows() ).isEqualTo( 100 );
+            restarted.stop();
+        } finally {
+            FileUtils.deleteDirectory( directory.toFile() );
+        }
+    }
+
+    @Test
+    public void testRecycleAndLimit() throws IOException {
+        var directory = Files.createTempDirectory( "spool" );
+        try {
+            var client = new RecordingClient();
+            var spool = spool( client, directory );
+            spool.segmentSize = 150;
+            spool.maxSegments = 2;
+
+            var line = "x".repeat( 60 ).getBytes( UTF_8 );
+            spool.append( "a", line );
+            spool.append( "a", line );
+            assertThatThrownBy( () -> spool.append( "a", line ) ).isInstanceOf( ClickhouseException.class );
+
+            spool.replay();
+            assertThat( client.inserted( "a" ) ).hasSize( 120 );
+            assertThat( directory.resolve( ".free" ).toFile().list() ).hasSize( 2 );
+
+            spool.append( "a", line );
+            spool.replay();
+            assertThat( client.inserted( "a" ) ).hasSize( 180 );
+            spool.stop();
+        } finally {
+            FileUtils.deleteDirectory( directory.toFile() );
+        }
+    }
+
+    @Test
+    public void testReplayKeepsBatchTokens() throws IOException {
+        var directory = Files.createTempDirectory( "spool" );
+        try {
+            var client = new RecordingClient();
+            client.down = true;
+
+            var spool = spool( client, directory );
+            spool.segmentSize = 1024;
+            for( var i = 0; i < 3; i++ ) spool.append( "a", ( i + "\n" ).getBytes( UTF_8 ), 0, 2, 1, "batch-" + i );
+            spool.stop();
+            Files.writeString( directory.resolve( "a" ).resolve( "notes.txt" ), "not a segment" );
+
+            client.down = false;
+            var restarted = spool( client, directory );
+            restarted.replay();
+            assertThat( client.inserted( "a" ) ).isEqualTo( "0\n1\n2\n" );
+            assertThat( client.tokens ).containsExactly( "batch-0", "batch-1", "batch-2" );
+            assertThat( restarted.getReplayedRows() ).isEqualTo( 3 );
+            restarted.stop();
+        } finally {
+            FileUtils.deleteDirectory( directory.toFile() );
+        }
+    }
+
+    @Test
+    public void testRejectedBatchIsMovedAside() throws IOException {
+        var directory = Files.createTempDirectory( "spool" );
+        try {
+            var client = new RecordingClient();
+            client.rejected = "batch-1";
+
+            var spool = spool( client, directory );
+            spool.segmentSize = 1024;
+            for( var i = 0; i < 3; i++ ) spool.append( "a", ( i + "\n" ).getBytes( UTF_8 ), 0, 2, 1, "batch-" + i );
+            spool.replay();
+
+            assertThat( client.inserted( "a" ) ).isEqualTo( "0\n2\n" );
+            assertThat( Files.readString( directory.resolve( ".dead" ).resolve( "a" ) ) ).isEqualTo( "1\n" );
+            assertThat( spool.getReplayedRows() ).isEqualTo( 2 );
+            assertThat( spool.getDroppedRows() ).isEqualTo( 1 );
+            assertThat( spool.getSegments() ).isZero();
+            spool.stop();
+        } finally {
+            FileUtils.deleteDirectory( directory.toFile() );
+        }
+    }
+
+    private static InsertSpool spool( ClickhouseClient client, Path directory ) {
+        var spool = new InsertSpool( client, directory );
+        spool.segmentSize = 100;
+        spool.replayInterval = h( 1 );
+        spool.start();
+        return spool;
+    }
+
+    private static class RecordingClient extends MockClickhouseClient {
+        final List<String[]> inserts = new ArrayList<>();
+        final List<String> tokens = new ArrayList<>();
+        volatile boolean down;
+        volatile String rejected;
+
+        @Override
+        public void insert( String table, DataFormat format, Collection<String> fields, String token, InsertBody body, long timeout ) {
+            if( token.equals( rejected ) )
+                throw new ClickhouseException( "bad row", 500, "Code: 27. DB::Exception: Cannot parse input" );
+            super.insert( table, format, fields, token, body, timeout );
+            tokens.add( token );
+        }
+
+        @Override
+        public OutputStream put( String table, DataFormat format, Collection<String> fields, long timeout ) {
+            if( down ) throw new ClickhouseException( "down", 0, null );
+
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    inserts.add( new String[] { table, toString( UTF_8 ) } );
+                }
+            };
+        }
+
+        String inserted( String table ) {
+            var sb = new StringBuilder();
+            for( var insert : inserts ) if( insert[0].equals( table ) ) sb.append( insert[1] );
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static oap.clickhouse.ConfigField.build;
+import static oap.clickhouse.FieldType.DOUBLE;
+import static oap.clickhouse.FieldType.LONG_ARRAY;
+import static oap.clickhouse.FieldType.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NativeBatchWriterTest {
+    private static final List<ConfigField> FIELDS = List.of( build( "S", STRING ), build( "A", LONG_ARRAY ), build( "D", DOUBLE ) );
+
+    @Test
+    public void testBlock() throws IOException {
+        var out = new ByteArrayOutputStream();
+        try( var writer = new NativeBatchWriter( FIELDS, out ) ) {
+            writer.writeString( "a" ).writeArray( 1 ).writeLong( 1 ).writeDouble( 0.5 ).endRow();
+            writer.writeString( "bc" ).writeArray( 0 ).writeLong( 1 ).endRow();
+        }
+
+        assertThat( out.toByteArray() ).containsExactly(
+            3, 2,
+            1, 'S', 6, 'S', 't', 'r', 'i', 'n', 'g',
+            1, 'a', 2, 'b', 'c',
+            1, 'A', 12, 'A', 'r', 'r', 'a', 'y', '(', 'I', 'n', 't', '6', '4', ')',
+            1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0,
+            1, 0, 0, 0, 0, 0, 0, 0,
+            1, 'D', 7, 'F', 'l', 'o', 'a', 't', '6', '4',
+            0, 0, 0, 0, 0, 0, 0xE0 - 256, 0x3F, 0, 0, 0, 0, 0, 0, 0xF0 - 256, 0x3F );
+    }
+
+    @Test
+    public void testSplitBlocks() throws IOException {
+        var split = new ByteArrayOutputStream();
+        try( var writer = new NativeBatchWriter( FIELDS, split, 2 ) ) {
+            for( int i = 0; i < 3; i++ ) row( writer, i );
+            writer.writeString( "partial" ).writeArray( 2 ).writeLong( 1 );
+            writer.flush();
+            writer.writeLong( 2 );
+        }
+
+        var expected = new ByteArrayOutputStream();
+        try( var first = new NativeBatchWriter( FIELDS, expected ) ) {
+            row( first, 0 );
+            row( first, 1 );
+        }
+        try( var second = new NativeBatchWriter( FIELDS, expected ) ) {
+            row( second, 2 );
+        }
+
+        assertThat( split.toByteArray() ).containsExactly( expected.toByteArray() );
+    }
+
+    private static void row( NativeBatchWriter writer, int i ) throws IOException {
+        writer.writeString( "row" + i ).writeArray( i );
+        for( int e = 0; e < i; e++ ) writer.writeLong( e );
+        writer.writeDouble( i ).endRow();
+    }
+}
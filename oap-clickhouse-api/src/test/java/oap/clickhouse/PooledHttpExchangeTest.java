@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PooledHttpExchangeTest {
+    @Test
+    public void testStaleConnectionWrite() throws IOException {
+        try( var server = new DroppingServer(); var pool = new ConnectionPool( 1, 60_000, 1_000 ) ) {
+            assertThat( exchange( pool, server, false ).getResponseCode() ).isEqualTo( 200 );
+
+            assertThatThrownBy( () -> exchange( pool, server, false ).getResponseCode() ).isInstanceOf( IOException.class );
+            assertThat( server.requests.get() ).isEqualTo( 2 );
+        }
+    }
+
+    @Test
+    public void testStaleConnectionRead() throws IOException {
+        try( var server = new DroppingServer(); var pool = new ConnectionPool( 1, 60_000, 1_000 ) ) {
+            assertThat( exchange( pool, server, true ).getResponseCode() ).isEqualTo( 200 );
+
+            assertThat( exchange( pool, server, true ).getResponseCode() ).isEqualTo( 200 );
+            assertThat( server.requests.get() ).isEqualTo( 3 );
+        }
+    }
+
+    private static PooledHttpExchange exchange( ConnectionPool pool, DroppingServer server, boolean read ) throws IOException {
+        var exchange = PooledHttpExchange.post( pool, "localhost", server.getLocalPort(), "/", Map.of(), 1024, 5_000, read );
+        exchange.getOutputStream().write( "SELECT 1".getBytes( UTF_8 ) );
+        if( exchange.getResponseCode() == 200 ) exchange.getInputStream().readAllBytes();
+        return exchange;
+    }
+
+    /**
+     * Answers the first request on a connection and closes it after reading the second one.
+     */
+    private static class DroppingServer extends ServerSocket {
+        final AtomicInteger requests = new AtomicInteger();
+
+        DroppingServer() throws IOException {
+            super( 0 );
+            var thread = new Thread( () -> {
+                while( !isClosed() ) {
+                    try( var socket = accept() ) {
+                        serve( socket );
+                    } catch( IOException ignored ) {
+                    }
+                }
+            } );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        private void serve( Socket socket ) throws IOException {
+            var in = socket.getInputStream();
+            for( var i = 0; i < 2; i++ ) {
+                if( !readRequest( in ) ) return;
+                requests.incrementAndGet();
+                if( i == 0 ) {
+                    socket.getOutputStream().write( "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes( UTF_8 ) );
+                    socket.getOutputStream().flush();
+                }
+            }
+        }
+
+        private static boolean readRequest( InputStream in ) throws IOException {
+            String line;
+            do {
+                line = PooledHttpExchange.readLine( in );
+                if( line == null ) return false;
+            } while( !line.isEmpty() );
+
+            while( true ) {
+                var size = Integer.parseInt( PooledHttpExchange.readLine( in ), 16 );
+                in.readNBytes( size + 2 );
+                if( size == 0 ) return true;
+            }
+        }
+    }
+}
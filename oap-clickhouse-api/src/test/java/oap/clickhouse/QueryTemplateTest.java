@@ -0,0 +1,51 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTemplateTest {
+    @Test
+    public void testRender() {
+        var template = QueryTemplate.parse( "INSERT INTO ${TABLE} ${FIELDS} FORMAT ${FORMAT}" );
+
+        assertThat( template.getPlaceholders() ).isEqualTo( List.of( "TABLE", "FIELDS", "FORMAT" ) );
+        assertThat( template.render( Map.of( "TABLE", "T", "FIELDS", "(A,B)", "FORMAT", "TabSeparated" )::get ) )
+            .isEqualTo( "INSERT INTO T (A,B) FORMAT TabSeparated" );
+        assertThat( template.render( Map.of( "TABLE", "T" )::get ) ).isEqualTo( "INSERT INTO T  FORMAT " );
+    }
+
+    @Test
+    public void testLiterals() {
+        assertThat( QueryTemplate.parse( "SELECT 1" ).render( f -> "x" ) ).isEqualTo( "SELECT 1" );
+        assertThat( QueryTemplate.parse( "${A}${B}" ).render( f -> f.toLowerCase() ) ).isEqualTo( "ab" );
+        assertThat( QueryTemplate.parse( "SELECT '${A' " ).render( f -> "x" ) ).isEqualTo( "SELECT '${A' " );
+        assertThat( QueryTemplate.parse( "PORT ${PORT}" ).render( f -> 8123 ) ).isEqualTo( "PORT 8123" );
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import static oap.clickhouse.LoadBalancing.LEAST_OUTSTANDING;
+import static oap.clickhouse.LoadBalancing.ROUND_ROBIN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReplicasTest {
+    @Test
+    public void testRouting() {
+        var replicas = new Replicas( List.of( "a:1", "b:1" ), List.of( "w:1" ), ROUND_ROBIN, ROUND_ROBIN, 3, 10_000 );
+
+        var first = replicas.acquire( false );
+        var second = replicas.acquire( false );
+        assertThat( List.of( first.host, second.host ) ).containsExactlyInAnyOrder( "a", "b" );
+        assertThat( replicas.acquire( true ).host ).isEqualTo( "w" );
+        assertThat( replicas.all() ).hasSize( 3 );
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        var replicas = new Replicas( List.of( "a:1", "b:1" ), List.of(), LEAST_OUTSTANDING, LEAST_OUTSTANDING, 3, 10_000 );
+
+        var busy = replicas.acquire( false );
+        for( var i = 0; i < 10; i++ ) {
+            var replica = replicas.acquire( false );
+            assertThat( replica ).isNotSameAs( busy );
+            replica.release( null );
+        }
+        busy.release( null );
+        assertThat( busy.getOutstanding() ).isZero();
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        var replicas = new Replicas( List.of( "a:1", "b:1" ), List.of(), ROUND_ROBIN, ROUND_ROBIN, 2, 10_000 );
+        var a = replicas.read.get( 0 );
+
+        a.release( new ClickhouseException( "", 500, "Code: 62. DB::Exception: Syntax error" ) );
+        a.release( new ClickhouseException( "", 500, "Code: 62. DB::Exception: Syntax error" ) );
+        assertThat( a.isAvailable( System.currentTimeMillis() ) ).isTrue();
+
+        a.release( new ClickhouseException( new IOException( "Connection reset" ) ) );
+        a.release( new ClickhouseException( "", 503, "" ) );
+        assertThat( a.isAvailable( System.currentTimeMillis() ) ).isFalse();
+        for( var i = 0; i < 10; i++ ) assertThat( replicas.acquire( false ).host ).isEqualTo( "b" );
+
+        assertThat( a.isAvailable( System.currentTimeMillis() + 10_000 ) ).isTrue();
+        a.release( null );
+        assertThat( a.isAvailable( System.currentTimeMillis() ) ).isTrue();
+    }
+
+    @Test
+    public void testTimeouts() {
+        var replicas = new Replicas( List.of( "a:1", "b:1" ), List.of(), ROUND_ROBIN, ROUND_ROBIN, 2, 10_000 );
+        var a = replicas.read.get( 0 );
+
+        a.release( new ClickhouseException( new CancellationException( "aborted" ) ) );
+        a.release( new ClickhouseException( new TimeoutException( "deadline" ) ) );
+        assertThat( a.isAvailable( System.currentTimeMillis() ) ).isTrue();
+
+        a.release( new ClickhouseException( new CancellationException( "aborted" ) ) );
+        a.release( new ClickhouseException( new TimeoutException( "deadline" ) ) );
+        assertThat( a.isAvailable( System.currentTimeMillis() ) ).isFalse();
+    }
+
+    @Test
+    public void testWriteRouting() {
+        assertThat( new DefaultClickhouseClient.Query( "select 1", false ).write ).isFalse();
+        assertThat( new DefaultClickhouseClient.Query( " /* c */ (WITH 1 AS x SELECT x)", false ).write ).isFalse();
+        assertThat( new DefaultClickhouseClient.Query( "-- c\nSHOW TABLES", false ).write ).isFalse();
+        assertThat( new DefaultClickhouseClient.Query( "DESC t", false ).write ).isFalse();
+        assertThat( new DefaultClickhouseClient.Query( "ALTER TABLE t DELETE WHERE 1", false ).write ).isTrue();
+        assertThat( new DefaultClickhouseClient.Query( "CREATE TABLE t (x Int8) ENGINE = Memory", false ).write ).isTrue();
+        assertThat( new DefaultClickhouseClient.Query( "SELECT 1", false, true ).write ).isTrue();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultCacheTest {
+    @Test
+    public void testNormalize() {
+        assertThat( ResultCache.normalize( "  SELECT  *\n\tFROM T   WHERE A = '  x  ' ;  " ) )
+            .isEqualTo( "SELECT * FROM T WHERE A = '  x  '" );
+        assertThat( ResultCache.normalize( "SELECT 'it\\'s  ok',  1" ) ).isEqualTo( "SELECT 'it\\'s  ok', 1" );
+        assertThat( ResultCache.isCacheable( "with 1 AS x SELECT x" ) ).isTrue();
+        assertThat( ResultCache.isCacheable( "INSERT INTO T SELECT 1" ) ).isFalse();
+        assertThat( ResultCache.isCacheable( "SELECT is_done FROM system.mutations" ) ).isFalse();
+        assertThat( ResultCache.isCacheable( "SELECT * FROM T JOIN `system`.tables t ON t.name = T.NAME" ) ).isFalse();
+        assertThat( ResultCache.sourceTables( "SELECT * FROM db.`A` a JOIN B ON a.ID = B.ID" ) ).containsExactlyInAnyOrder( "A", "B" );
+    }
+
+    @Test
+    public void testInvalidate() {
+        var cache = new ResultCache( 1024 * 1024, 60_000, 0, MoreExecutors.newDirectExecutorService() );
+        var loads = new AtomicInteger();
+
+        var query = "SELECT count() FROM db.T";
+        assertThat( cache.get( "k", query, () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 1 );
+        assertThat( cache.get( "k", query, () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 1 );
+
+        cache.written( null, "SELECT * FROM T" );
+        cache.written( "OTHER", "INSERT INTO OTHER FORMAT TabSeparated" );
+        assertThat( cache.size() ).isEqualTo( 1 );
+
+        cache.written( null, "TRUNCATE TABLE IF EXISTS db.T" );
+        assertThat( cache.size() ).isZero();
+        assertThat( cache.get( "k", query, () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 2 );
+
+        cache.written( "T", "INSERT INTO T FORMAT TabSeparated" );
+        assertThat( cache.size() ).isZero();
+    }
+
+    @Test
+    public void testWriteDuringLoad() {
+        var cache = new ResultCache( 1024 * 1024, 60_000, 0, MoreExecutors.newDirectExecutorService() );
+
+        cache.get( "k", "SELECT * FROM T", () -> {
+            cache.written( null, "ALTER TABLE T DELETE WHERE 1" );
+            return new byte[0];
+        } );
+        assertThat( cache.size() ).isZero();
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws InterruptedException {
+        var cache = new ResultCache( 1024 * 1024, 50, 60_000, MoreExecutors.newDirectExecutorService() );
+        var loads = new AtomicInteger();
+
+        cache.get( "k", "SELECT 1", () -> new byte[] { ( byte ) loads.incrementAndGet() } );
+        Thread.sleep( 100 );
+        assertThat( cache.get( "k", "SELECT 1", () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 1 );
+
+        for( var i = 0; i < 100 && loads.get() < 2; i++ ) Thread.sleep( 10 );
+        Thread.sleep( 10 );
+        assertThat( cache.get( "k", "SELECT 1", () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 2 );
+    }
+
+    @Test
+    public void testStaleAfterClose() throws InterruptedException {
+        var cache = new ResultCache( 1024 * 1024, 50, 60_000, MoreExecutors.newDirectExecutorService() );
+        var loads = new AtomicInteger();
+
+        cache.get( "k", "SELECT 1", () -> new byte[] { ( byte ) loads.incrementAndGet() } );
+        cache.close();
+        Thread.sleep( 100 );
+        assertThat( cache.get( "k", "SELECT 1", () -> new byte[] { ( byte ) loads.incrementAndGet() } ) ).containsExactly( 1 );
+        assertThat( loads.get() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testSizeLimit() {
+        var cache = new ResultCache( 10_000, 60_000, 0, MoreExecutors.newDirectExecutorService() );
+
+        for( var i = 0; i < 100; i++ ) cache.get( "k" + i, "SELECT " + i, () -> new byte[1000] );
+        assertThat( cache.size() ).isLessThan( 10 );
+    }
+}
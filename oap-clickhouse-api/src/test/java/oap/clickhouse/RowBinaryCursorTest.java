@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static oap.clickhouse.ConfigField.build;
+import static oap.clickhouse.ConfigField.buildFixedString;
+import static oap.clickhouse.FieldType.DATETIME;
+import static oap.clickhouse.FieldType.DOUBLE;
+import static oap.clickhouse.FieldType.INTEGER;
+import static oap.clickhouse.FieldType.LONG_ARRAY;
+import static oap.clickhouse.FieldType.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RowBinaryCursorTest {
+    @Test
+    public void testRead() throws IOException {
+        var fields = List.of( build( "S", STRING ), buildFixedString( "FS", 3 ), build( "I", INTEGER ),
+            build( "D", DOUBLE ), build( "T", DATETIME ), build( "A", LONG_ARRAY ) );
+
+        var out = new ByteArrayOutputStream();
+        var header = new BinaryOutput( out, 16 );
+        header.putVarInt( fields.size() );
+        for( var f : fields ) header.putString( f.name );
+        for( var f : fields ) header.putString( f.getClickhouseType() );
+        header.flushBuffer();
+
+        try( var writer = new RowBinaryWriter( fields, out ) ) {
+            for( int i = 0; i < 3; i++ ) {
+                writer.writeString( "s" + i ).writeString( "f" ).writeInt( -i ).writeDouble( i / 2.0 )
+                    .writeDateTime( 1483228800000L ).writeArray( i );
+                for( int e = 0; e < i; e++ ) writer.writeLong( e );
+                writer.endRow();
+            }
+        }
+
+        var cursor = new RowBinaryCursor( new ByteArrayInputStream( out.toByteArray() ) );
+        assertThat( cursor.columns() ).isEqualTo( 6 );
+        assertThat( cursor.indexOf( "D" ) ).isEqualTo( 3 );
+
+        for( int i = 0; i < 3; i++ ) {
+            assertThat( cursor.next() ).isTrue();
+            assertThat( cursor.getString( 0 ) ).isEqualTo( "s" + i );
+            assertThat( cursor.getBytes( 1 ) ).containsExactly( 'f', 0, 0 );
+            assertThat( cursor.getLong( 2 ) ).isEqualTo( -i );
+            assertThat( cursor.getDouble( 3 ) ).isEqualTo( i / 2.0 );
+            assertThat( cursor.getMillis( 4 ) ).isEqualTo( 1483228800000L );
+            assertThat( cursor.getLongArray( 5 ) ).hasSize( i );
+        }
+        assertThat( cursor.next() ).isFalse();
+    }
+
+    @Test
+    public void testParseType() {
+        assertThat( RowBinaryCursor.ColumnType.parse( "LowCardinality(Nullable(String))" ).nullable ).isTrue();
+        assertThat( RowBinaryCursor.ColumnType.parse( "DateTime64(6, 'UTC')" ).scale ).isEqualTo( 6 );
+        assertThat( RowBinaryCursor.ColumnType.parse( "Decimal(20, 4)" ).size ).isEqualTo( 16 );
+        assertThat( RowBinaryCursor.ColumnType.parse( "Array(Enum16('a' = 1))" ).element.size ).isEqualTo( 2 );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+import static oap.clickhouse.ConfigField.build;
+import static oap.clickhouse.ConfigField.buildFixedString;
+import static oap.clickhouse.FieldType.DATE;
+import static oap.clickhouse.FieldType.DATETIME;
+import static oap.clickhouse.FieldType.DOUBLE;
+import static oap.clickhouse.FieldType.INTEGER;
+import static oap.clickhouse.FieldType.LONG_ARRAY;
+import static oap.clickhouse.FieldType.STRING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RowBinaryWriterTest {
+    @Test
+    public void testEncoding() throws IOException {
+        var out = new ByteArrayOutputStream();
+        try( var writer = new RowBinaryWriter( List.of(
+            build( "S", STRING ), buildFixedString( "FS", 3 ), build( "I", INTEGER ), build( "D", DOUBLE ),
+            build( "DT", DATETIME ), build( "DA", DATE ), build( "A", LONG_ARRAY ),
+            new ConfigField( "M", STRING, Optional.empty(), Optional.empty(), "", Optional.empty(),
+                Optional.of( "S" ), Optional.empty(), 0 ) ), out, 16 ) ) {
+            writer.writeString( "\u0451" ).writeString( "ab" ).writeInt( -2 ).writeDouble( 1.0 )
+                .writeDateTime( 1000_000L ).writeDateTime( 86400000L * 3 )
+                .writeArray( 2 ).writeLong( 1 ).writeLong( 2 );
+            writer.endRow();
+
+            assertThat( writer.rows() ).isEqualTo( 1 );
+        }
+
+        assertThat( out.toByteArray() ).containsExactly(
+            2, 0xD1 - 256, 0x91 - 256,
+            'a', 'b', 0,
+            -2, -1, -1, -1,
+            0, 0, 0, 0, 0, 0, 0xF0 - 256, 0x3F,
+            0xE8 - 256, 0x03, 0, 0,
+            3, 0,
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0 );
+    }
+
+    @Test
+    public void testColumnOrder() throws IOException {
+        var writer = new RowBinaryWriter( List.of( build( "I", INTEGER ), build( "S", STRING ) ), new ByteArrayOutputStream() );
+
+        assertThatThrownBy( () -> writer.writeString( "a" ) ).isInstanceOf( IllegalStateException.class );
+        writer.writeInt( 1 );
+        assertThatThrownBy( writer::endRow ).isInstanceOf( IllegalStateException.class );
+        writer.writeString( "a" );
+        assertThatThrownBy( () -> writer.writeInt( 1 ) ).isInstanceOf( IllegalStateException.class );
+        writer.endRow();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardedInserterTest {
+    @Test
+    public void testWeights() {
+        var first = new MockClickhouseClient();
+        var second = new MockClickhouseClient();
+        var inserter = new ShardedInserter<Long>( List.of( new BatchInserter( first ), new BatchInserter( second ) ),
+            List.of( 1, 3 ), id -> id, id -> "row" + id );
+
+        inserter.start();
+        for( var id = 0L; id < 400; id++ ) inserter.insert( "T", id );
+        inserter.stop();
+
+        assertThat( lines( first ) ).hasSize( 100 ).allMatch( l -> Long.parseLong( l.substring( 3 ) ) % 4 == 0 );
+        assertThat( lines( second ) ).hasSize( 300 ).noneMatch( l -> Long.parseLong( l.substring( 3 ) ) % 4 == 0 );
+        assertThat( inserter.getInsertedRows() ).isEqualTo( 400 );
+    }
+
+    @Test
+    public void testHashedKeys() {
+        var inserter = new ShardedInserter<String>( List.of( new BatchInserter( new MockClickhouseClient() ),
+            new BatchInserter( new MockClickhouseClient() ), new BatchInserter( new MockClickhouseClient() ) ),
+            List.of( 1, 1, 1 ), k -> k, k -> k );
+
+        var counts = new int[3];
+        for( var i = 0; i < 3000; i++ ) counts[inserter.shard( "key" + i )]++;
+
+        for( var count : counts ) assertThat( count ).isGreaterThan( 800 );
+        assertThat( inserter.shard( "key1" ) ).isEqualTo( inserter.shard( "key1" ) );
+    }
+
+    private static List<String> lines( MockClickhouseClient client ) {
+        return client.puts.stream()
+            .flatMap( p -> new String( p.content.toByteArray(), UTF_8 ).lines() )
+            .collect( Collectors.toList() );
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public void afterClass() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        var singleFlight = new SingleFlight<String>();
+        var loads = new AtomicInteger();
+        var release = new CountDownLatch( 1 );
+
+        var leader = CompletableFuture.supplyAsync( () -> singleFlight.get( "k", 0, () -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch( InterruptedException e ) {
+                throw new IllegalStateException( e );
+            }
+            return "result";
+        } ), executor );
+        while( singleFlight.size() == 0 ) Thread.sleep( 1 );
+
+        var followers = new ArrayList<CompletableFuture<String>>();
+        for( var i = 0; i < 8; i++ )
+            followers.add( CompletableFuture.supplyAsync( () -> singleFlight.get( "k", 0, () -> "own " + loads.incrementAndGet() ), executor ) );
+        while( singleFlight.waiting() < followers.size() ) Thread.sleep( 1 );
+        release.countDown();
+
+        assertThat( leader.join() ).isEqualTo( "result" );
+        for( var follower : followers ) assertThat( follower.join() ).isEqualTo( "result" );
+        assertThat( loads.get() ).isEqualTo( 1 );
+        assertThat( singleFlight.size() ).isZero();
+
+        assertThat( singleFlight.get( "k", 0, () -> "next" ) ).isEqualTo( "next" );
+    }
+
+    @Test
+    public void testFailure() throws InterruptedException {
+        var singleFlight = new SingleFlight<String>();
+        var release = new CountDownLatch( 1 );
+
+        var leader = CompletableFuture.supplyAsync( () -> singleFlight.get( "k", 0, () -> {
+            try {
+                release.await();
+            } catch( InterruptedException e ) {
+                throw new IllegalStateException( e );
+            }
+            throw new ClickhouseException( "Code: 60. DB::Exception: Table T doesn't exist", 404, null );
+        } ), executor );
+        while( singleFlight.size() == 0 ) Thread.sleep( 1 );
+
+        var follower = CompletableFuture.supplyAsync( () -> singleFlight.get( "k", 0, () -> "own" ), executor );
+        var waiting = CompletableFuture.supplyAsync( () -> singleFlight.get( "k", 10, () -> "own" ), executor );
+        assertThatThrownBy( waiting::join ).hasCauseInstanceOf( ClickhouseException.class );
+
+        release.countDown();
+        assertThatThrownBy( leader::join ).hasCauseInstanceOf( ClickhouseException.class );
+        assertThatThrownBy( follower::join ).hasRootCauseMessage( "Code: 60. DB::Exception: Table T doesn't exist" );
+    }
+}
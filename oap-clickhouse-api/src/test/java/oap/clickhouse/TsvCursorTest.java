@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.clickhouse;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TsvCursorTest {
+    @Test
+    public void testFields() throws IOException {
+        var tsv = "a\\tb\t-12\t1.25\t\\N\t\u0451\\\\\n"
+            + "\n"
+            + "x\t9223372036854775807\t1e3\t\t-0.5";
+
+        try( var cursor = new TsvCursor( trickle( tsv ) ) ) {
+            assertThat( cursor.next() ).isTrue();
+            assertThat( cursor.fields() ).isEqualTo( 5 );
+            assertThat( cursor.getCharSequence( 0 ).toString() ).isEqualTo( "a\tb" );
+            assertThat( cursor.getRawString( 0 ) ).isEqualTo( "a\\tb" );
+            assertThat( cursor.getLong( 1 ) ).isEqualTo( -12 );
+            assertThat( cursor.getDouble( 2 ) ).isEqualTo( 1.25 );
+            assertThat( cursor.isNull( 3 ) ).isTrue();
+            assertThat( cursor.getString( 4 ) ).isEqualTo( "\u0451\\" );
+
+            assertThat( cursor.next() ).isTrue();
+            assertThat( cursor.line() ).isEmpty();
+            assertThat( cursor.fields() ).isEqualTo( 1 );
+
+            assertThat( cursor.next() ).isTrue();
+            assertThat( cursor.equalsAscii( 0, "x" ) ).isTrue();
+            assertThat( cursor.getLong( 1 ) ).isEqualTo( Long.MAX_VALUE );
+            assertThat( cursor.getDouble( 2 ) ).isEqualTo( 1000.0 );
+            assertThat( cursor.isEmpty( 3 ) ).isTrue();
+            assertThat( cursor.getDouble( 4 ) ).isEqualTo( -0.5 );
+
+            assertThat( cursor.next() ).isFalse();
+            assertThat( cursor.lineNumber() ).isEqualTo( 2 );
+        }
+    }
+
+    @Test
+    public void testSpecialNumbers() throws IOException {
+        try( var cursor = new TsvCursor( trickle( "nan\tinf\t-inf\t-9223372036854775808\t18446744073709551615\t9223372036854775808\n" ) ) ) {
+            assertThat( cursor.next() ).isTrue();
+            assertThat( cursor.getDouble( 0 ) ).isNaN();
+            assertThat( cursor.getDouble( 1 ) ).isEqualTo( Double.POSITIVE_INFINITY );
+            assertThat( cursor.getDouble( 2 ) ).isEqualTo( Double.NEGATIVE_INFINITY );
+            assertThat( cursor.getLong( 3 ) ).isEqualTo( Long.MIN_VALUE );
+            assertThatThrownBy( () -> cursor.getLong( 4 ) ).isInstanceOf( NumberFormatException.class );
+            assertThatThrownBy( () -> cursor.getLong( 5 ) ).isInstanceOf( NumberFormatException.class );
+            assertThat( cursor.getString( 4 ) ).isEqualTo( "18446744073709551615" );
+        }
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        var line = "v".repeat( TsvCursor.BUFFER_SIZE * 3 );
+        var lines = new ArrayList<String>();
+
+        try( var cursor = new TsvCursor( new ByteArrayInputStream( ( "1\n" + line + "\n2\n" ).getBytes( UTF_8 ) ) ) ) {
+            while( cursor.next() ) lines.add( cursor.line() );
+        }
+
+        assertThat( lines ).containsExactly( "1", line, "2" );
+    }
+
+    private static FilterInputStream trickle( String data ) {
+        return new FilterInputStream( new ByteArrayInputStream( data.getBytes( UTF_8 ) ) ) {
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException {
+                return super.read( b, off, Math.min( len, 3 ) );
+            }
+        };
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static oap.clickhouse.ConfigField.build;
+import static oap.clickhouse.FieldType.DATETIME;
+import static oap.clickhouse.FieldType.DOUBLE;
+import static oap.clickhouse.FieldType.LONG;
+import static oap.clickhouse.FieldType.STRING;
+import static oap.clickhouse.FieldType.STRING_ARRAY;
+
+/**
+ * Row encoders and decoders without the network, per row.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@OperationsPerInvocation( EncoderBenchmark.ROWS )
+public class EncoderBenchmark {
+    static final int ROWS = 10000;
+    private static final List<ConfigField> FIELDS = List.of(
+        build( "DATETIME", DATETIME ), build( "ID", STRING ), build( "COUNT", LONG ), build( "PRICE", DOUBLE ),
+        build( "TAGS", STRING_ARRAY ) );
+
+    @Param( { "NONE", "LZ4", "ZSTD" } )
+    public NativeCompression compression;
+
+    private byte[] tsv;
+
+    @Setup
+    public void setup() {
+        tsv = BenchmarkData.tsv( ROWS, 8 );
+    }
+
+    @Benchmark
+    public long rowBinary() throws IOException {
+        try( var writer = new RowBinaryWriter( FIELDS, compression.compress( OutputStream.nullOutputStream(), 1024 * 1024 ) ) ) {
+            for( var i = 0; i < ROWS; i++ ) {
+                writer.writeDateTime( 1_600_000_000_000L + i * 1000L ).writeString( "id" + ( i & 1023 ) )
+                    .writeLong( i ).writeDouble( i * 0.01 ).writeArray( 2 ).writeString( "tag1" ).writeString( "tag2" );
+                writer.endRow();
+            }
+            return writer.rows();
+        }
+    }
+
+    @Benchmark
+    public long nativeBlocks() throws IOException {
+        try( var writer = new NativeBatchWriter( FIELDS, compression.compress( OutputStream.nullOutputStream(), 1024 * 1024 ) ) ) {
+            for( var i = 0; i < ROWS; i++ ) {
+                writer.writeDateTime( 1_600_000_000_000L + i * 1000L ).writeString( "id" + ( i & 1023 ) )
+                    .writeLong( i ).writeDouble( i * 0.01 ).writeArray( 2 ).writeString( "tag1" ).writeString( "tag2" );
+                writer.endRow();
+            }
+            return writer.rows();
+        }
+    }
+
+    @Benchmark
+    public void tsvCursor( Blackhole blackhole ) throws IOException {
+        try( var cursor = new TsvCursor( new ByteArrayInputStream( tsv ) ) ) {
+            while( cursor.next() ) {
+                blackhole.consume( cursor.getRawString( 0 ) );
+                blackhole.consume( cursor.getRawString( 7 ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A SELECT of {@code rows} lines of 8 fields from {@link ClickhouseStandIn}, read line by line and as tsv rows.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class GetBenchmark {
+    @Param( { "URL_CONNECTION", "HTTP_CLIENT", "POOLED" } )
+    public Transport transport;
+    @Param( { "10", "10000" } )
+    public int rows;
+
+    private ClickhouseStandIn standIn;
+    private DefaultClickhouseClient client;
+
+    @Setup
+    public void setup() {
+        standIn = new ClickhouseStandIn().respond( "FROM EVENTS", new String( BenchmarkData.tsv( rows, 8 ), UTF_8 ) );
+        client = standIn.client( "benchmark" );
+        client.transport = transport;
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        standIn.close();
+    }
+
+    @Benchmark
+    public int get( Blackhole blackhole ) {
+        return client.get( "SELECT * FROM EVENTS", blackhole::consume );
+    }
+
+    @Benchmark
+    public int getTsv( Blackhole blackhole ) {
+        return client.getTsv( "SELECT * FROM EVENTS", row -> {
+            blackhole.consume( row.getRawString( 0 ) );
+            blackhole.consume( row.getRawString( 7 ) );
+        } );
+    }
+}
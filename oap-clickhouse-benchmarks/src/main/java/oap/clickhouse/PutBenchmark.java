@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One put of {@code size} bytes of tsv into {@link ClickhouseStandIn}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class PutBenchmark {
+    @Param( { "URL_CONNECTION", "HTTP_CLIENT", "POOLED" } )
+    public Transport transport;
+    @Param( { "NONE", "GZIP", "LZ4" } )
+    public HttpCompression compression;
+    @Param( { "1024", "1048576" } )
+    public int size;
+
+    private ClickhouseStandIn standIn;
+    private DefaultClickhouseClient client;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        standIn = new ClickhouseStandIn();
+        client = standIn.client( "benchmark" );
+        client.transport = transport;
+        client.compression = compression;
+
+        var tsv = BenchmarkData.tsv( size / 64 + 1, 8 );
+        data = new byte[size];
+        for( var i = 0; i < size; i += tsv.length ) System.arraycopy( tsv, 0, data, i, Math.min( tsv.length, size - i ) );
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        standIn.close();
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        try( var out = client.put( "EVENTS", DataFormat.TabSeparated ) ) {
+            out.write( data );
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import oap.util.Strings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ${...} substitution of the client's and the tables' query templates.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class SubstituteBenchmark {
+    private static final String PUT = "INSERT INTO ${TABLE} ${FIELDS} FORMAT ${FORMAT}";
+    private static final QueryTemplate PUT_TEMPLATE = QueryTemplate.parse( PUT );
+    private static final QueryTemplate OPTIMIZE_TEMPLATE = QueryTemplate.parse( AbstractTable.OPTIMIZE_TABLE_SQL );
+    private static final List<String> FIELDS = List.of( "DATETIME", "ID", "COUNTRY", "CAMPAIGN", "IMPRESSIONS", "CLICKS" );
+
+    private DefaultClickhouseClient client;
+    private Table table;
+
+    @Setup
+    public void setup() {
+        client = new DefaultClickhouseClient( "localhost", 8123, "benchmark" );
+        table = new Database( "benchmark", new MockClickhouseClient(), null ).getTable( "EVENTS" );
+    }
+
+    @Benchmark
+    public String getSubstitute() {
+        return client.getSubstitute( "EVENTS", PUT, SubstituteBenchmark::put );
+    }
+
+    @Benchmark
+    public String getSubstituteTemplate() {
+        return client.getSubstitute( "EVENTS", PUT_TEMPLATE, SubstituteBenchmark::put );
+    }
+
+    private static String put( String field ) {
+        return switch( field ) {
+            case "FIELDS" -> Strings.join( ",", FIELDS, "(", ")" );
+            case "FORMAT" -> DataFormat.TabSeparated.name();
+            default -> null;
+        };
+    }
+
+    @Benchmark
+    public String buildQuery() {
+        return table.buildQuery( AbstractTable.OPTIMIZE_TABLE_SQL, Map.of( "FINAL", "FINAL" ) );
+    }
+
+    @Benchmark
+    public String buildQueryTemplate() {
+        return table.buildQuery( OPTIMIZE_TEMPLATE, Map.of( "FINAL", "FINAL" ) );
+    }
+}
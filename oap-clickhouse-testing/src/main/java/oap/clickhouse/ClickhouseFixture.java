@@ -32,6 +32,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 
 import java.util.List;
+import java.util.Map;
 
 import static oap.testng.Fixture.Scope.METHOD;
 
@@ -68,7 +69,8 @@ public class ClickhouseFixture extends AbstractEnvFixture<ClickhouseFixture> {
         var time = DateTime.now().minusDays( 2 ).toString( "YYYY-MM-dd HH:mm:ss" );
         List<String> lines = client
             .useDatabase( "system" )
-            .getLines( "SELECT database FROM (SELECT database, MAX(metadata_modification_time) AS time from system.tables GROUP BY database) WHERE time > '" + time + "'" );
+            .withParams( Map.of( "time", time ) )
+            .getLines( "SELECT database FROM (SELECT database, MAX(metadata_modification_time) AS time from system.tables GROUP BY database) WHERE time > {time:DateTime}" );
 
         for( String database : lines ) {
             if( "system".equals( database ) ) continue;
@@ -0,0 +1,372 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+import static java.util.regex.Pattern.DOTALL;
+
+/**
+ * Enough of the ClickHouse http interface to load test a pipeline or benchmark the client without a server:
+ * <ul>
+ * <li>a SELECT gets the first {@link #respond(String, String)} response whose pattern it matches, otherwise its own text</li>
+ * <li>system.tables and system.columns are answered from {@link #table(String, String, Engine, Map)}, filtered by
+ * {@code column = 'value'} or {@code column = {param:Type}} conditions, other system tables are empty</li>
+ * <li>an INSERT body is read to its end and counted per table: bytes, and lines of text formats as rows</li>
+ * <li>any other statement succeeds with an empty response</li>
+ * </ul>
+ * {@link #latency}, {@link #errorRate} and {@link #failNext(int, int)} slow requests down or fail them. Responses are
+ * text only, RowBinary and Native results are not produced.
+ */
+@Slf4j
+public class ClickhouseStandIn implements Closeable {
+    private static final Pattern INSERT = Pattern.compile( "^\\s*INSERT\\s+INTO\\s+(?:TABLE\\s+)?([\\w.`\"]+)", CASE_INSENSITIVE );
+    private static final Pattern FORMAT = Pattern.compile( "\\sFORMAT\\s+(\\w+)", CASE_INSENSITIVE );
+    private static final Pattern SYSTEM = Pattern.compile(
+        "^\\s*SELECT\\s+(.+?)\\s+FROM\\s+system\\.(\\w+)(?:\\s+WHERE\\s+(.+?))?(?:\\s+FORMAT\\s+\\w+)?\\s*;?\\s*$", CASE_INSENSITIVE | DOTALL );
+    private static final Pattern CONDITION = Pattern.compile( "(\\w+)\\s*=\\s*(?:'([^']*)'|\\{(\\w+):\\w+})" );
+
+    /**
+     * ms added to every response
+     */
+    public long latency = 0;
+    /**
+     * up to this many random ms added to {@link #latency}
+     */
+    public long latencyJitter = 0;
+    /**
+     * share of requests, 0..1, failed with {@link #errorCode}
+     */
+    public double errorRate = 0;
+    /**
+     * TOO_MANY_PARTS by default, which the client retries
+     */
+    public int errorCode = 252;
+    /**
+     * false answers every request with {@code Connection: close}
+     */
+    public boolean keepAlive = true;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<Map.Entry<Pattern, byte[]>> responses = new CopyOnWriteArrayList<>();
+    private final Map<String, List<Map<String, String>>> system = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Inserted> inserted = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int failureCode;
+
+    public ClickhouseStandIn() {
+        this( 0 );
+    }
+
+    /**
+     * @param port 0 for any free one
+     */
+    public ClickhouseStandIn( int port ) {
+        try {
+            server = HttpServer.create( new InetSocketAddress( "localhost", port ), 0 );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+        executor = Executors.newCachedThreadPool( r -> {
+            var thread = new Thread( r, "clickhouse-stand-in" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        server.setExecutor( executor );
+        server.createContext( "/", this::handle );
+        server.start();
+        log.info( "clickhouse stand-in on localhost:{}", getPort() );
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public DefaultClickhouseClient client( String database ) {
+        return new DefaultClickhouseClient( "localhost", getPort(), database );
+    }
+
+    /**
+     * @param regex found in the query text
+     */
+    public ClickhouseStandIn respond( String regex, String response ) {
+        responses.add( Map.entry( Pattern.compile( regex, CASE_INSENSITIVE | DOTALL ), response.getBytes( UTF_8 ) ) );
+        return this;
+    }
+
+    /**
+     * Adds the table to system.tables and its columns, name to type in order, to system.columns.
+     */
+    public ClickhouseStandIn table( String database, String name, Engine engine, Map<String, String> columns ) {
+        var definition = new ArrayList<String>();
+        var position = 0;
+        for( var column : columns.entrySet() ) {
+            definition.add( "`" + column.getKey() + "` " + column.getValue() );
+
+            var row = new HashMap<String, String>();
+            row.put( "database", database );
+            row.put( "table", name );
+            row.put( "name", column.getKey() );
+            row.put( "type", column.getValue() );
+            row.put( "position", String.valueOf( ++position ) );
+            for( var flag : List.of( "is_in_partition_key", "is_in_sorting_key", "is_in_primary_key", "is_in_sampling_key" ) )
+                row.put( flag, "0" );
+            system.computeIfAbsent( "columns", k -> new CopyOnWriteArrayList<>() ).add( row );
+        }
+
+        var row = new HashMap<String, String>();
+        row.put( "database", database );
+        row.put( "name", name );
+        row.put( "engine", engine.name() );
+        row.put( "dependencies_table", "[]" );
+        row.put( "engine_full", engine + ( engine == Engine.Memory ? "" : " ORDER BY tuple()" ) );
+        row.put( "create_table_query", "CREATE TABLE " + database + "." + name + " (" + String.join( ", ", definition ) + ") ENGINE = "
+            + row.get( "engine_full" ) );
+        system.computeIfAbsent( "tables", k -> new CopyOnWriteArrayList<>() ).add( row );
+        return this;
+    }
+
+    /**
+     * Fails the next {@code count} requests with the ClickHouse error {@code code}.
+     */
+    public void failNext( int count, int code ) {
+        failureCode = code;
+        failures.set( count );
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getInsertedRows( String table ) {
+        var counts = inserted.get( table );
+        return counts != null ? counts.rows.get() : 0;
+    }
+
+    public long getInsertedBytes( String table ) {
+        var counts = inserted.get( table );
+        return counts != null ? counts.bytes.get() : 0;
+    }
+
+    public long getInsertedBytes() {
+        return inserted.values().stream().mapToLong( c -> c.bytes.get() ).sum();
+    }
+
+    /**
+     * Forgets counters and pending failures, keeps tables and responses.
+     */
+    public void reset() {
+        requests.set( 0 );
+        errors.set( 0 );
+        failures.set( 0 );
+        inserted.clear();
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        try( exchange ) {
+            requests.incrementAndGet();
+            var params = params( exchange.getRequestURI().getRawQuery() );
+            exchange.getResponseHeaders().set( "X-ClickHouse-Query-Id", params.getOrDefault( "query_id", UUID.randomUUID().toString() ) );
+            if( !keepAlive ) exchange.getResponseHeaders().set( "Connection", "close" );
+
+            if( "/ping".equals( exchange.getRequestURI().getPath() ) ) {
+                send( exchange, 200, "Ok.\n".getBytes( UTF_8 ) );
+                return;
+            }
+
+            var in = new BufferedInputStream( HttpCompression.ofEncoding( exchange.getRequestHeaders().getFirst( "Content-Encoding" ) )
+                .decompress( exchange.getRequestBody() ) );
+            var query = params.containsKey( "query" ) ? params.get( "query" ) : readLine( in );
+            var insert = INSERT.matcher( query );
+            long rows = 0;
+            long bytes = 0;
+            if( insert.find() ) {
+                var format = FORMAT.matcher( query );
+                var text = format.find() && isText( format.group( 1 ) );
+                var buffer = new byte[64 * 1024];
+                int read;
+                while( ( read = in.read( buffer ) ) != -1 ) {
+                    bytes += read;
+                    if( text ) for( var i = 0; i < read; i++ ) if( buffer[i] == '\n' ) rows++;
+                }
+            } else query = query + new String( in.readAllBytes(), UTF_8 );
+            // a decompressor may stop at the end of its frame, the connection is kept alive only once the body is read
+            exchange.getRequestBody().transferTo( OutputStream.nullOutputStream() );
+
+            pause();
+
+            var code = failure();
+            if( code > 0 ) {
+                errors.incrementAndGet();
+                exchange.getResponseHeaders().set( "X-ClickHouse-Exception-Code", String.valueOf( code ) );
+                send( exchange, 500, ( "Code: " + code + ". DB::Exception: injected by the stand-in. (STAND_IN)\n" ).getBytes( UTF_8 ) );
+                return;
+            }
+
+            if( insert.find( 0 ) ) {
+                var counts = inserted.computeIfAbsent( insert.group( 1 ).replaceAll( "[`\"]", "" ), t -> new Inserted() );
+                counts.rows.addAndGet( rows );
+                counts.bytes.addAndGet( bytes );
+                exchange.getResponseHeaders().set( "X-ClickHouse-Summary", summary( rows, bytes ) );
+                send( exchange, 200, new byte[0] );
+            } else send( exchange, 200, select( query, params ) );
+        } catch( IOException | RuntimeException e ) {
+            log.error( e.getMessage(), e );
+            throw e;
+        }
+    }
+
+    private byte[] select( String query, Map<String, String> params ) {
+        for( var response : responses )
+            if( response.getKey().matcher( query ).find() ) return response.getValue();
+
+        var matcher = SYSTEM.matcher( query );
+        if( matcher.find() ) {
+            var out = new StringBuilder();
+            var columns = matcher.group( 1 ).split( "\\s*,\\s*" );
+            var conditions = new LinkedHashMap<String, String>();
+            if( matcher.group( 3 ) != null ) {
+                var condition = CONDITION.matcher( matcher.group( 3 ) );
+                while( condition.find() )
+                    conditions.put( condition.group( 1 ), condition.group( 2 ) != null ? condition.group( 2 ) : params.get( "param_" + condition.group( 3 ) ) );
+            }
+            for( var row : system.getOrDefault( matcher.group( 2 ).toLowerCase(), List.of() ) ) {
+                if( !conditions.entrySet().stream().allMatch( c -> c.getValue().equals( row.get( c.getKey() ) ) ) ) continue;
+                for( var i = 0; i < columns.length; i++ ) {
+                    if( i > 0 ) out.append( '\t' );
+                    out.append( row.getOrDefault( columns[i], "" ) );
+                }
+                out.append( '\n' );
+            }
+            return out.toString().getBytes( UTF_8 );
+        }
+
+        return query.trim().toUpperCase().startsWith( "SELECT" ) ? ( query.trim() + "\n" ).getBytes( UTF_8 ) : new byte[0];
+    }
+
+    private void pause() {
+        var pause = latency + ( latencyJitter > 0 ? ThreadLocalRandom.current().nextLong( latencyJitter + 1 ) : 0 );
+        if( pause <= 0 ) return;
+        try {
+            Thread.sleep( pause );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int failure() {
+        if( failures.getAndUpdate( n -> Math.max( n - 1, 0 ) ) > 0 ) return failureCode;
+        if( errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate ) return errorCode;
+        return 0;
+    }
+
+    private static boolean isText( String format ) {
+        return format.startsWith( "TabSeparated" ) || format.startsWith( "TSV" ) || format.startsWith( "CSV" )
+            || format.startsWith( "JSONEachRow" );
+    }
+
+    private static String summary( long rows, long bytes ) {
+        return "{\"read_rows\":\"0\",\"read_bytes\":\"0\",\"written_rows\":\"" + rows + "\",\"written_bytes\":\"" + bytes
+            + "\",\"total_rows_to_read\":\"0\",\"result_rows\":\"" + rows + "\",\"result_bytes\":\"" + bytes + "\"}";
+    }
+
+    /**
+     * @return the statement: the body up to the first new line, the data of an INSERT follows it
+     */
+    private static String readLine( InputStream in ) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while( ( b = in.read() ) != -1 ) {
+            line.write( b );
+            if( b == '\n' ) break;
+        }
+        return line.toString( UTF_8 );
+    }
+
+    private static Map<String, String> params( String rawQuery ) {
+        var params = new HashMap<String, String>();
+        if( rawQuery == null ) return params;
+
+        for( var param : rawQuery.split( "&" ) ) {
+            var idx = param.indexOf( '=' );
+            if( idx > 0 ) params.put( URLDecoder.decode( param.substring( 0, idx ), UTF_8 ), URLDecoder.decode( param.substring( idx + 1 ), UTF_8 ) );
+        }
+        return params;
+    }
+
+    private static void send( HttpExchange exchange, int code, byte[] body ) throws IOException {
+        if( body.length == 0 ) exchange.sendResponseHeaders( code, -1 );
+        else {
+            exchange.sendResponseHeaders( code, body.length );
+            exchange.getResponseBody().write( body );
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    private static class Inserted {
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+}
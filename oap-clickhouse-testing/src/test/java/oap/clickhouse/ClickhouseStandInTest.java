@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.clickhouse;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ClickhouseStandInTest {
+    private ClickhouseStandIn standIn;
+    private DefaultClickhouseClient client;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        standIn = new ClickhouseStandIn();
+        client = standIn.client( "db" );
+    }
+
+    @AfterMethod
+    public void afterMethod() {
+        client.stop();
+        standIn.close();
+    }
+
+    @Test
+    public void testSelect() {
+        assertThat( client.getLines( "SELECT 1" ) ).containsExactly( "SELECT 1" );
+
+        standIn.respond( "FROM EVENTS", "a\t1\nb\t2\n" );
+        assertThat( client.getLines( "SELECT * FROM EVENTS" ) ).containsExactly( "a\t1", "b\t2" );
+        assertThat( client.getLines( "SELECT * FROM system.mutations" ) ).isEmpty();
+    }
+
+    @Test
+    public void testInsert() {
+        client.retryDelay = 1;
+        for( var transport : Transport.values() ) {
+            client.transport = transport;
+            client.compression = transport == Transport.POOLED ? HttpCompression.LZ4 : HttpCompression.NONE;
+            client.insert( "EVENTS", DataFormat.TabSeparated, "1\ta\n2\tb\n".getBytes(), transport.name() );
+        }
+        assertThat( standIn.getInsertedRows( "EVENTS" ) ).isEqualTo( 6 );
+        assertThat( standIn.getInsertedBytes( "EVENTS" ) ).isEqualTo( 24 );
+
+        standIn.failNext( 2, 252 );
+        client.insert( "EVENTS", DataFormat.TabSeparated, "3\tc\n".getBytes(), "retried" );
+        assertThat( standIn.getErrors() ).isEqualTo( 2 );
+        assertThat( standIn.getInsertedRows( "EVENTS" ) ).isEqualTo( 7 );
+
+        standIn.errorRate = 1;
+        standIn.errorCode = 62;
+        assertThatThrownBy( () -> client.insert( "EVENTS", DataFormat.TabSeparated, "4\td\n".getBytes(), "failed" ) )
+            .isInstanceOfSatisfying( ClickhouseException.class, e -> assertThat( e.getErrorCode() ).isEqualTo( 62 ) );
+    }
+
+    @Test
+    public void testConnectionClose() {
+        client.transport = Transport.POOLED;
+        standIn.keepAlive = false;
+        for( var i = 0; i < 3; i++ ) assertThat( client.getLines( "SELECT " + i ) ).containsExactly( "SELECT " + i );
+        assertThat( client.pool().getIdleConnections() ).isZero();
+        assertThat( client.pool().getOpenConnections() ).isZero();
+
+        standIn.keepAlive = true;
+        for( var i = 0; i < 3; i++ ) assertThat( client.getLines( "SELECT " + i ) ).containsExactly( "SELECT " + i );
+        assertThat( client.pool().getIdleConnections() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testMetadata() {
+        var columns = new LinkedHashMap<String, String>();
+        columns.put( "ID", "String" );
+        columns.put( "COUNT", "UInt64" );
+        standIn.table( "db", "EVENTS", Engine.MergeTree, columns );
+        standIn.table( "db", "CACHE", Engine.Memory, Map.of( "ID", "String" ) );
+
+        var database = client.getDatabase();
+        var table = database.getTable( "EVENTS" );
+        assertThat( table.exists() ).isTrue();
+        assertThat( table.getInfo().engine ).isEqualTo( Engine.MergeTree );
+        assertThat( table.getFields() ).containsOnlyKeys( "ID", "COUNT" );
+        assertThat( table.getFields().get( "COUNT" ).type ).isEqualTo( "UInt64" );
+        assertThat( table.isMemoryEngine() ).isFalse();
+        assertThat( database.getTable( "CACHE" ).isMemoryEngine() ).isTrue();
+        assertThat( database.getTable( "UNKNOWN" ).exists() ).isFalse();
+        assertThat( standIn.getRequests() ).isEqualTo( 3 );
+
+        table.refresh();
+        assertThat( table.getFields() ).containsOnlyKeys( "ID", "COUNT" );
+        assertThat( database.getTable( "CACHE" ).getFields() ).containsOnlyKeys( "ID" );
+        assertThat( standIn.getRequests() ).isEqualTo( 6 );
+
+        table.refresh();
+        standIn.failNext( 1, 62 );
+        assertThatThrownBy( table::getFields ).isInstanceOf( ClickhouseException.class );
+        assertThat( table.exists() ).isTrue();
+    }
+
+    @Test
+    public void testAbort() {
+        var stats = new ArrayList<QueryStats>();
+        var client = this.client.withStats( stats::add );
+        standIn.respond( "FROM EVENTS", "a\nb\n" );
+        try( var lines = client.stream( "SELECT * FROM EVENTS" ) ) {
+            assertThat( lines.findFirst() ).contains( "a" );
+        }
+        assertThat( stats ).isEmpty();
+
+        standIn.latency = 500;
+        assertThatThrownBy( () -> client.getLines( "SELECT 1", true, 100 ) ).isInstanceOf( ClickhouseException.class );
+        assertThat( stats ).isEmpty();
+
+        standIn.latency = 0;
+        assertThat( client.getLines( "SELECT 1" ) ).containsExactly( "SELECT 1" );
+        assertThat( stats ).hasSize( 1 );
+    }
+
+    @Test
+    public void testSingleFlight() throws InterruptedException {
+        client.singleFlight = true;
+        standIn.latency = 300;
+        standIn.respond( "FROM EVENTS", "a\nb\n" );
+
+        assertThat( concurrentReads() ).isEqualTo( 1 );
+
+        client.singleFlightMaxBytes = 2;
+        standIn.reset();
+        assertThat( concurrentReads() ).isEqualTo( 2 );
+    }
+
+    private long concurrentReads() throws InterruptedException {
+        var first = CompletableFuture.supplyAsync( () -> client.getLines( "SELECT * FROM EVENTS" ) );
+        while( standIn.getRequests() == 0 ) Thread.sleep( 1 );
+
+        assertThat( client.getLines( "SELECT * FROM EVENTS" ) ).containsExactly( "a", "b" );
+        assertThat( first.join() ).containsExactly( "a", "b" );
+        return standIn.getRequests();
+    }
+
+    @Test
+    public void testLatency() {
+        standIn.latency = 200;
+        var start = System.currentTimeMillis();
+        client.execute( "OPTIMIZE TABLE EVENTS", true );
+        assertThat( System.currentTimeMillis() - start ).isGreaterThanOrEqualTo( 200 );
+        assertThat( standIn.getRequests() ).isEqualTo( 1 );
+    }
+}